@@ -16,6 +16,7 @@
 package org.lbzip2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Mikolaj Izdebski
@@ -23,9 +24,51 @@ import java.io.IOException;
 abstract class AbstractDataSink
     implements DataSink
 {
+    /**
+     * Size of chunks in which buffers not backed by accessible arrays (such as direct buffers) are processed.
+     */
+    static final int CHUNK_SIZE = 8192;
+
+    private byte[] chunk;
+
     public final int write( byte[] buf )
         throws IOException
     {
         return write( buf, 0, buf.length );
     }
+
+    /**
+     * Write bytes remaining in given buffer. Heap buffers are written directly from their backing arrays. Other
+     * buffers are copied in small chunks, which stay in processor cache.
+     */
+    public int write( ByteBuffer src )
+        throws IOException
+    {
+        if ( src.hasArray() )
+        {
+            int n = write( src.array(), src.arrayOffset() + src.position(), src.remaining() );
+            src.position( src.position() + n );
+            return n;
+        }
+
+        if ( chunk == null )
+            chunk = new byte[CHUNK_SIZE];
+
+        int total = 0;
+        while ( src.hasRemaining() )
+        {
+            int position = src.position();
+            int len = Math.min( chunk.length, src.remaining() );
+            src.get( chunk, 0, len );
+
+            int n = write( chunk, 0, len );
+            src.position( position + n );
+            total += n;
+
+            if ( n < len )
+                break;
+        }
+
+        return total;
+    }
 }
@@ -16,6 +16,7 @@
 package org.lbzip2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Mikolaj Izdebski
@@ -23,9 +24,42 @@ import java.io.IOException;
 abstract class AbstractDataSource
     implements DataSource
 {
+    private byte[] chunk;
+
     public final int read( byte[] buf )
         throws IOException
     {
         return read( buf, 0, buf.length );
     }
+
+    /**
+     * Read bytes into given buffer. Heap buffers are filled directly. Other buffers are filled in small chunks, which
+     * stay in processor cache.
+     */
+    public int read( ByteBuffer dst )
+        throws IOException
+    {
+        if ( dst.hasArray() )
+        {
+            int n = read( dst.array(), dst.arrayOffset() + dst.position(), dst.remaining() );
+            dst.position( dst.position() + n );
+            return n;
+        }
+
+        if ( chunk == null )
+            chunk = new byte[AbstractDataSink.CHUNK_SIZE];
+
+        int total = 0;
+        while ( dst.hasRemaining() )
+        {
+            int n = read( chunk, 0, Math.min( chunk.length, dst.remaining() ) );
+            if ( n == 0 )
+                break;
+
+            dst.put( chunk, 0, n );
+            total += n;
+        }
+
+        return total;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,199 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BWT implementation choosing one of other implementations for each block, based on a quick analysis of the block.
+ * <p>
+ * Tiny blocks are transformed by {@link RadixSortBWT}, which has no setup cost. Blocks consisting mostly of long
+ * repeats found far apart, on which {@link DivBWT} degrades, are transformed by linear-time {@link SaisBWT}. All other
+ * blocks are transformed by {@link DivBWT}, except for blocks which are concatenations of several copies of the same
+ * string, which {@code SaisBWT} transforms by sorting a single copy.
+ * <p>
+ * Repeats are found by hashing windows of {@code WINDOW} bytes, remembering windows at every {@code WINDOW}-th
+ * position only. Blocks with few type B* suffixes are always left to {@code DivBWT}, which only needs to sort these
+ * suffixes directly. B* suffixes are counted by the first pass of {@code DivBWT}, which isn't repeated when
+ * {@code DivBWT} is chosen.
+ * <p>
+ * Engine chosen for each block is logged at debug level, together with block statistics it was chosen upon.
+ * 
+ * @author Mikolaj Izdebski
+ */
+final class AdaptiveBWT
+    implements BWT
+{
+    enum Engine
+    {
+        RADIX,
+        DIVSUFSORT,
+        SAIS,
+    }
+
+    private final Logger logger = LoggerFactory.getLogger( AdaptiveBWT.class );
+
+    /**
+     * Maximal size of blocks transformed by radix sort.
+     */
+    private static final int TINY_BLOCK = 64;
+
+    /**
+     * Minimal size of blocks worth analysing. Smaller blocks are always transformed by {@code DivBWT}.
+     */
+    private static final int MIN_ANALYSED_BLOCK = 65536;
+
+    /**
+     * Length of windows hashed to find repeats.
+     */
+    private static final int WINDOW = 32;
+
+    /**
+     * Minimal distance between occurrences of a repeat for it to count as a far repeat. Repeats which are closer are
+     * handled efficiently by tandem repeat sorting in {@code DivBWT}.
+     */
+    private static final int FAR_DISTANCE = 4096;
+
+    private static final int HASH_BITS = 14;
+
+    private final BWT radix = new RadixSortBWT();
+
+    private final DivBWT div = new DivBWT();
+
+    private final SaisBWT sais = new SaisBWT();
+
+    /**
+     * Positions of windows with given hash, or {@code -1}.
+     */
+    private final int[] table = new int[1 << HASH_BITS];
+
+    private Engine lastEngine;
+
+    /**
+     * Period of the last analysed block, or {@code 0} if the block is not periodic.
+     */
+    private int period;
+
+    /**
+     * Set executor used by {@code DivBWT} to sort parts of blocks in parallel.
+     * 
+     * @see DivBWT#setExecutor
+     */
+    void setExecutor( Executor executor, int parallelism )
+    {
+        div.setExecutor( executor, parallelism );
+    }
+
+    /**
+     * Get engine chosen for the most recently transformed block.
+     */
+    Engine getLastEngine()
+    {
+        return lastEngine;
+    }
+
+    public int transform( byte[] B, int[] P, int n )
+    {
+        if ( n <= TINY_BLOCK )
+        {
+            lastEngine = Engine.RADIX;
+            return radix.transform( B, P, n );
+        }
+        if ( n < MIN_ANALYSED_BLOCK )
+        {
+            lastEngine = Engine.DIVSUFSORT;
+            return div.transform( B, P, n );
+        }
+
+        int bstar = div.countBstar( B, P, n );
+        int far = countFarRepeats( B, n );
+
+        /*
+         * Block is periodic, or most of the block is covered by far repeats and there are many suffixes DivBWT would
+         * need to sort.
+         */
+        Engine engine = ( period != 0 || ( 2 * far >= n && 8 * bstar >= n ) ) ? Engine.SAIS : Engine.DIVSUFSORT;
+        lastEngine = engine;
+
+        if ( logger.isDebugEnabled() )
+            logger.debug( "BWT engine: {} (bs={}, B*={}, far={}, period={})", engine, n, bstar, far, period );
+
+        if ( engine == Engine.SAIS )
+            return sais.transform( B, P, n );
+        return div.transform( B, P, n, bstar );
+    }
+
+    /**
+     * Estimate number of positions which start a window that also occurs at least {@code FAR_DISTANCE} bytes earlier.
+     * <p>
+     * Only windows starting at every {@code WINDOW}-th position are remembered, so a repeat is found at about one in
+     * {@code WINDOW} of its positions, and the number of windows found is scaled accordingly.
+     * <p>
+     * As a side effect, {@code period} is set to the smallest period of the block dividing its size, or zero. Only
+     * positions at which the first window of the block reoccurs are verified as periods, and no more than {@code n}
+     * bytes are compared in total.
+     */
+    private int countFarRepeats( byte[] B, int n )
+    {
+        final int[] table = this.table;
+        final int mask = ( 1 << HASH_BITS ) - 1;
+        Arrays.fill( table, -1 );
+
+        /* Polynomial rolling hash of window B[i..i+WINDOW-1]. */
+        int h = 0, pow = 1;
+        for ( int i = 0; i < WINDOW; i++ )
+        {
+            h = h * 31 + B[i];
+            pow *= 31;
+        }
+
+        final int h0 = h;
+        int budget = n;
+        period = 0;
+
+        int far = 0;
+        for ( int i = 0;; i++ )
+        {
+            if ( h == h0 && i > 0 && period == 0 && n % i == 0 && budget > 0 )
+            {
+                int j = i;
+                while ( j < n && B[j] == B[j - i] )
+                    j++;
+                if ( j == n )
+                    period = i;
+                budget -= j - i;
+            }
+
+            int slot = ( h * 0x9E3779B9 ) >>> ( 32 - HASH_BITS );
+            int j = table[slot & mask];
+
+            if ( j >= 0 && i - j >= FAR_DISTANCE && B[i] == B[j] && B[i + WINDOW - 1] == B[j + WINDOW - 1] )
+                far++;
+            if ( i % WINDOW == 0 )
+                table[slot & mask] = i;
+
+            if ( i + WINDOW >= n )
+                break;
+            h = h * 31 + B[i + WINDOW] - pow * B[i];
+        }
+
+        return far * WINDOW;
+    }
+}
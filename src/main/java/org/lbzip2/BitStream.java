@@ -42,12 +42,33 @@ class BitStream
 
     boolean eof;
 
+    /**
+     * Make sure that at least {@code n} bits are available in the bit buffer, if possible.
+     * <p>
+     * When at least 8 bytes of input remain, a whole big-endian word is loaded and as many of its bytes as fit are
+     * consumed, leaving at least 56 bits in the buffer. Bits of bytes which didn't fit are left in the buffer below
+     * {@code live} &ndash; they are equal to the bits loaded again when these bytes are consumed, so bits are always
+     * or-ed into the buffer. Remaining bytes near the end of input are loaded one at a time.
+     */
     Status need( int n )
     {
+        if ( live < n && len - off >= 8 )
+        {
+            final byte[] p = ptr;
+            final int i = off;
+            long w = ( p[i] & 0xFFL ) << 56 | ( p[i + 1] & 0xFFL ) << 48 | ( p[i + 2] & 0xFFL ) << 40
+                | ( p[i + 3] & 0xFFL ) << 32 | ( p[i + 4] & 0xFFL ) << 24 | ( p[i + 5] & 0xFFL ) << 16
+                | ( p[i + 6] & 0xFFL ) << 8 | ( p[i + 7] & 0xFFL );
+            buff |= w >>> live;
+            int k = ( 63 - live ) >> 3;
+            off += k;
+            live += k << 3;
+        }
+
         while ( live < n && off < len )
         {
             live += 8;
-            buff += ( ptr[off++] & 0xFFL ) << ( 64 - live );
+            buff |= ( ptr[off++] & 0xFFL ) << ( 64 - live );
         }
         if ( live >= n )
             return OK;
@@ -82,7 +103,8 @@ class BitStream
 
     void consume()
     {
-        dump( live );
+        buff = 0;
+        live = 0;
         off = len;
     }
 }
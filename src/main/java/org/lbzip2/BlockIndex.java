@@ -0,0 +1,386 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+/**
+ * Index of blocks within compressed <em>bz2</em> data, allowing random access to decompressed data.
+ * <p>
+ * For every block the index records bit position of its header within compressed data, its offset within
+ * decompressed data, its CRC and the block size it was compressed with. Index can be stored in a small sidecar file,
+ * typically taking a few bytes per compressed block. Blocks of all concatenated streams are indexed as a whole, as if
+ * they belonged to a single stream.
+ * <p>
+ * Sidecar file consists of magic bytes {@code "BZX1"}, number of blocks, total size of compressed data and a record
+ * for each block. Each record holds the distance in bits from the previous block header, decompressed size of the
+ * block, block CRC and block size in units of 100k. All numbers except CRCs and block sizes are stored as unsigned
+ * variable-length integers, 7 bits per byte, least significant group first.
+ *
+ * @author Mikolaj Izdebski
+ */
+public class BlockIndex
+{
+    private static final int MAGIC = 0x425A5831;
+
+    private int count;
+
+    private long[] positions = new long[16];
+
+    /**
+     * Offsets of blocks within decompressed data. Has one more element than there are blocks, the last one being the
+     * total size of decompressed data.
+     */
+    private long[] offsets = new long[17];
+
+    private int[] crcs = new int[16];
+
+    private byte[] sizes = new byte[16];
+
+    private long compressedSize;
+
+    /**
+     * Build index of given compressed data, which is read until end of file is reached. Every block is decompressed in
+     * order to find out its decompressed size.
+     *
+     * @param is input stream to read compressed data from
+     * @return index of compressed data
+     * @throws IOException if I/O error occurs or compressed data is invalid
+     */
+    public static BlockIndex build( InputStream is )
+        throws IOException
+    {
+        BlockIndex index = new BlockIndex();
+        StreamDecomposer decomposer = new StreamDecomposer();
+        Retriever retriever = Retriever.POOL.acquire();
+        Decoder ds = Decoder.POOL.acquire();
+        DecompressedBlock block = new DecompressedBlock();
+        LinkedList<UndecompressedBlock> blocks = new LinkedList<UndecompressedBlock>();
+        UndecompressedBlock last = null;
+        byte[] buf = new byte[65536];
+        int r;
+
+        try
+        {
+            while ( ( r = is.read( buf ) ) != -1 )
+            {
+                index.compressedSize += r;
+
+                for ( int off = 0; off < r; )
+                {
+                    off += decomposer.write( buf, off, r - off );
+
+                    UndecompressedBlock ub = decomposer.extractBlock();
+                    if ( ub != null )
+                    {
+                        blocks.add( ub );
+                        last = index.addBlocks( blocks, last, false, retriever, ds, block );
+                    }
+                }
+            }
+
+            decomposer.finish();
+            index.addBlocks( blocks, last, true, retriever, ds, block );
+        }
+        finally
+        {
+            Retriever.POOL.release( retriever );
+            Decoder.POOL.release( ds );
+        }
+
+        return index;
+    }
+
+    /**
+     * Decompress blocks found so far and append them to the index, skipping blocks which turn out to be parts of
+     * preceding blocks. Blocks which continue past blocks found so far are left in the queue, unless all blocks were
+     * found.
+     *
+     * @param blocks blocks to append, in stream order
+     * @param last the last block appended, or {@code null}
+     * @param finished whether all blocks were found
+     * @return the last block appended, or {@code null}
+     */
+    private UndecompressedBlock addBlocks( LinkedList<UndecompressedBlock> blocks, UndecompressedBlock last,
+                                           boolean finished, Retriever retriever, Decoder ds,
+                                           DecompressedBlock block )
+        throws IOException
+    {
+        while ( !blocks.isEmpty() )
+        {
+            UndecompressedBlock ub = blocks.peek();
+
+            if ( last == null || !last.contains( ub ) )
+            {
+                try
+                {
+                    ub.decompress( retriever, ds, block );
+                }
+                catch ( TruncatedBlockException e )
+                {
+                    if ( finished )
+                        throw e;
+                    return last;
+                }
+
+                add( ub.position, block.size(), ub.crc, ub.bs100k );
+                last = ub;
+            }
+
+            blocks.poll();
+        }
+
+        return last;
+    }
+
+    /**
+     * Append a block to the index.
+     *
+     * @param position bit position of block header within compressed data
+     * @param size decompressed size of the block
+     * @param crc block CRC
+     * @param bs100k block size in units of 100k
+     */
+    void add( long position, int size, int crc, int bs100k )
+    {
+        if ( count == positions.length )
+        {
+            int n = 2 * count;
+
+            long[] newPositions = new long[n];
+            System.arraycopy( positions, 0, newPositions, 0, count );
+            positions = newPositions;
+
+            long[] newOffsets = new long[n + 1];
+            System.arraycopy( offsets, 0, newOffsets, 0, count + 1 );
+            offsets = newOffsets;
+
+            int[] newCrcs = new int[n];
+            System.arraycopy( crcs, 0, newCrcs, 0, count );
+            crcs = newCrcs;
+
+            byte[] newSizes = new byte[n];
+            System.arraycopy( sizes, 0, newSizes, 0, count );
+            sizes = newSizes;
+        }
+
+        positions[count] = position;
+        crcs[count] = crc;
+        sizes[count] = (byte) bs100k;
+        offsets[count + 1] = offsets[count] + size;
+        count++;
+    }
+
+    /**
+     * Get number of blocks.
+     */
+    public int getBlockCount()
+    {
+        return count;
+    }
+
+    /**
+     * Get total size of compressed data in bytes.
+     */
+    public long getCompressedSize()
+    {
+        return compressedSize;
+    }
+
+    void setCompressedSize( long compressedSize )
+    {
+        this.compressedSize = compressedSize;
+    }
+
+    /**
+     * Get total size of decompressed data in bytes.
+     */
+    public long getUncompressedSize()
+    {
+        return offsets[count];
+    }
+
+    /**
+     * Get bit position of block header within compressed data.
+     */
+    public long getBlockPosition( int i )
+    {
+        return positions[i];
+    }
+
+    /**
+     * Get offset of the first byte of block within decompressed data.
+     */
+    public long getBlockOffset( int i )
+    {
+        return offsets[i];
+    }
+
+    /**
+     * Get decompressed size of block.
+     */
+    public int getBlockSize( int i )
+    {
+        return (int) ( offsets[i + 1] - offsets[i] );
+    }
+
+    /**
+     * Get CRC of block.
+     */
+    public int getBlockCrc( int i )
+    {
+        return crcs[i];
+    }
+
+    /**
+     * Get block size (in units of 100k) block was compressed with.
+     */
+    int getBlockBs100k( int i )
+    {
+        return sizes[i];
+    }
+
+    /**
+     * Find block containing byte at given offset within decompressed data.
+     *
+     * @param offset offset within decompressed data
+     * @return index of block, or {@code -1} if offset is out of range
+     */
+    public int findBlock( long offset )
+    {
+        if ( offset < 0 || offset >= offsets[count] )
+            return -1;
+
+        /* Find the last block starting at or before given offset, skipping empty blocks. */
+        int lo = 0;
+        int hi = count - 1;
+        while ( lo < hi )
+        {
+            int mid = ( lo + hi + 1 ) >>> 1;
+            if ( offsets[mid] <= offset )
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Write index to given output stream.
+     *
+     * @param os output stream to write index to
+     * @throws IOException if I/O error occurs
+     */
+    public void write( OutputStream os )
+        throws IOException
+    {
+        DataOutputStream dos = new DataOutputStream( os );
+        dos.writeInt( MAGIC );
+        writeNumber( dos, count );
+        writeNumber( dos, compressedSize );
+
+        long position = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            writeNumber( dos, positions[i] - position );
+            writeNumber( dos, getBlockSize( i ) );
+            dos.writeInt( crcs[i] );
+            dos.writeByte( sizes[i] );
+            position = positions[i];
+        }
+
+        dos.flush();
+    }
+
+    /**
+     * Read index from given input stream.
+     *
+     * @param is input stream to read index from
+     * @return index read
+     * @throws IOException if I/O error occurs or index is invalid
+     */
+    public static BlockIndex read( InputStream is )
+        throws IOException
+    {
+        DataInputStream dis = new DataInputStream( is );
+        BlockIndex index = new BlockIndex();
+
+        try
+        {
+            if ( dis.readInt() != MAGIC )
+                throw new StreamFormatException( "Not a bz2 index file" );
+
+            long n = readNumber( dis );
+            index.compressedSize = readNumber( dis );
+
+            long position = 0;
+            for ( long i = 0; i < n; i++ )
+            {
+                position += readNumber( dis );
+                long size = readNumber( dis );
+                int crc = dis.readInt();
+                int bs100k = dis.readByte();
+
+                if ( size > Integer.MAX_VALUE || bs100k < 1 || bs100k > 9 )
+                    throw new StreamFormatException( "Invalid bz2 index file" );
+
+                index.add( position, (int) size, crc, bs100k );
+            }
+
+            if ( index.count > 0 && position >= index.compressedSize * 8 )
+                throw new StreamFormatException( "Invalid bz2 index file" );
+        }
+        catch ( EOFException e )
+        {
+            throw new StreamFormatException( "Truncated bz2 index file" );
+        }
+
+        return index;
+    }
+
+    private static void writeNumber( DataOutputStream dos, long value )
+        throws IOException
+    {
+        while ( ( value & ~0x7FL ) != 0 )
+        {
+            dos.writeByte( (int) ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        dos.writeByte( (int) value );
+    }
+
+    private static long readNumber( DataInputStream dis )
+        throws IOException
+    {
+        long value = 0;
+        for ( int shift = 0; shift < 63; shift += 7 )
+        {
+            int b = dis.readUnsignedByte();
+            value |= (long) ( b & 0x7F ) << shift;
+            if ( b < 0x80 )
+                return value;
+        }
+
+        throw new StreamFormatException( "Invalid bz2 index file" );
+    }
+}
@@ -16,6 +16,7 @@
 package org.lbzip2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Mikolaj Izdebski
@@ -46,4 +47,13 @@ class ByteArrayDataSource
         offset += size;
         return size;
     }
+
+    @Override
+    public int read( ByteBuffer dst )
+    {
+        int size = Math.min( dst.remaining(), array.length - offset );
+        dst.put( array, offset, size );
+        offset += size;
+        return size;
+    }
 }
\ No newline at end of file
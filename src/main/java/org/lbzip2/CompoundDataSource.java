@@ -16,6 +16,7 @@
 package org.lbzip2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 
 /**
@@ -56,4 +57,23 @@ class CompoundDataSource
 
         return len - avail;
     }
+
+    @Override
+    public final int read( ByteBuffer dst )
+        throws IOException
+    {
+        int total = 0;
+
+        while ( dst.hasRemaining() && !isEmpty() )
+        {
+            DataSource source = sources.peek();
+
+            total += source.read( dst );
+
+            if ( source.isEmpty() )
+                sources.poll();
+        }
+
+        return total;
+    }
 }
\ No newline at end of file
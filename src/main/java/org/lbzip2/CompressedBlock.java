@@ -26,10 +26,16 @@ public class CompressedBlock
 
     final int crc;
 
-    CompressedBlock( byte[] buffer, int blockSize, int crc )
+    /**
+     * Size of block data before initial RLE was applied.
+     */
+    final int uncompressedSize;
+
+    CompressedBlock( byte[] buffer, int blockSize, int crc, int uncompressedSize )
     {
         this.buffer = buffer;
         this.blockSize = blockSize;
         this.crc = crc;
+        this.uncompressedSize = uncompressedSize;
     }
 }
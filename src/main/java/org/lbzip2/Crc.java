@@ -0,0 +1,140 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.lbzip2.Constants.crc_table;
+
+/**
+ * CRC-32 as used by <em>bz2</em> format, that is with non-reflected polynomial {@code 0x04c11db7}, processing bits of
+ * each byte starting with the most significant one.
+ * <p>
+ * Bulk updates are done with slicing-by-8 algorithm, processing 8 bytes at a time with 8 table lookups. Table
+ * {@code k} holds CRC of each byte followed by {@code k} zero bytes.
+ * <p>
+ * CRCs of separate chunks can be combined into CRC of their concatenation. CRC is linear over GF(2), so appending
+ * {@code n} bytes to a message is equivalent to multiplying its CRC by {@code x^(8n)} modulo the polynomial and adding
+ * CRC of the appended bytes. Powers {@code x^(2^k)} are precomputed, so combining takes time logarithmic in chunk
+ * length.
+ * 
+ * @author Mikolaj Izdebski
+ */
+final class Crc
+{
+    private static final int POLY = 0x04c11db7;
+
+    /**
+     * Slicing tables. {@code TABLE[256*k+b]} is CRC of byte {@code b} followed by {@code k} zero bytes.
+     */
+    private static final int[] TABLE = new int[8 * 256];
+
+    /**
+     * {@code X2N[k]} is {@code x^(2^k)} modulo the polynomial. Lengths are given in bytes, which are 8 bits, so there
+     * are 3 more powers than bits in a length.
+     */
+    private static final int[] X2N = new int[3 + 63];
+
+    static
+    {
+        System.arraycopy( crc_table, 0, TABLE, 0, 256 );
+        for ( int i = 256; i < TABLE.length; i++ )
+        {
+            int crc = TABLE[i - 256];
+            TABLE[i] = ( crc << 8 ) ^ crc_table[crc >>> 24];
+        }
+
+        X2N[0] = 2;
+        for ( int k = 1; k < X2N.length; k++ )
+            X2N[k] = multiply( X2N[k - 1], X2N[k - 1] );
+    }
+
+    /**
+     * Update CRC with given bytes.
+     * 
+     * @param crc CRC register, initially {@code -1}
+     * @param buf buffer holding bytes
+     * @param off offset of the first byte
+     * @param len number of bytes
+     * @return updated CRC register
+     */
+    static int update( int crc, byte[] buf, int off, int len )
+    {
+        final int[] T = TABLE;
+        final int end = off + len;
+
+        while ( off + 8 <= end )
+        {
+            int hi =
+                crc ^ ( ( buf[off] << 24 ) | ( ( buf[off + 1] & 0xFF ) << 16 ) | ( ( buf[off + 2] & 0xFF ) << 8 )
+                    | ( buf[off + 3] & 0xFF ) );
+
+            crc =
+                T[7 * 256 + ( hi >>> 24 )] ^ T[6 * 256 + ( ( hi >>> 16 ) & 0xFF )]
+                    ^ T[5 * 256 + ( ( hi >>> 8 ) & 0xFF )] ^ T[4 * 256 + ( hi & 0xFF )]
+                    ^ T[3 * 256 + ( buf[off + 4] & 0xFF )] ^ T[2 * 256 + ( buf[off + 5] & 0xFF )]
+                    ^ T[256 + ( buf[off + 6] & 0xFF )] ^ T[buf[off + 7] & 0xFF];
+
+            off += 8;
+        }
+
+        while ( off < end )
+            crc = ( crc << 8 ) ^ T[( crc >>> 24 ) ^ ( buf[off++] & 0xFF )];
+
+        return crc;
+    }
+
+    /**
+     * Multiply two polynomials modulo CRC polynomial.
+     */
+    private static int multiply( int a, int b )
+    {
+        int product = 0;
+
+        for ( int i = 0; i < 32; i++ )
+        {
+            product = ( product << 1 ) ^ ( POLY & ( product >> 31 ) );
+            if ( a < 0 )
+                product ^= b;
+            a <<= 1;
+        }
+
+        return product;
+    }
+
+    /**
+     * Combine CRCs of two chunks of data into CRC of their concatenation.
+     * 
+     * @param crc1 final CRC of the first chunk
+     * @param crc2 final CRC of the second chunk
+     * @param len2 length of the second chunk in bytes
+     * @return final CRC of concatenation of both chunks
+     */
+    static int combine( int crc1, int crc2, long len2 )
+    {
+        /* Multiply crc1 by x^(8*len2). */
+        for ( int k = 3; len2 != 0; k++, len2 >>>= 1 )
+        {
+            if ( ( len2 & 1 ) != 0 )
+                crc1 = multiply( crc1, X2N[k] );
+        }
+
+        return crc1 ^ crc2;
+    }
+
+    private Crc()
+    {
+        // This class is not supposed to be instantiated.
+    }
+}
@@ -16,6 +16,7 @@
 package org.lbzip2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Mikolaj Izdebski
@@ -30,4 +31,10 @@ public interface DataSink
 
     int write( byte[] buf, int off, int len )
         throws IOException;
+
+    /**
+     * Write bytes remaining in given buffer, advancing its position by the number of bytes written.
+     */
+    int write( ByteBuffer src )
+        throws IOException;
 }
@@ -16,6 +16,7 @@
 package org.lbzip2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Mikolaj Izdebski
@@ -30,4 +31,10 @@ public interface DataSource
 
     int read( byte[] buf, int off, int len )
         throws IOException;
+
+    /**
+     * Read bytes into space remaining in given buffer, advancing its position by the number of bytes read.
+     */
+    int read( ByteBuffer dst )
+        throws IOException;
 }
@@ -16,13 +16,49 @@
 package org.lbzip2;
 
 import static org.lbzip2.Constants.RAND_THRESH;
-import static org.lbzip2.Constants.crc_table;
 import static org.lbzip2.Constants.rand_table;
 import static org.lbzip2.Status.MORE;
 import static org.lbzip2.Status.OK;
 
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
 class Decoder
 {
+    /**
+     * Pool of decoders, shared by all decompressors. Decoders are recycled because of their large {@code tt} array.
+     */
+    static final ObjectPool<Decoder> POOL = new ObjectPool<Decoder>()
+    {
+        @Override
+        protected Decoder create()
+        {
+            return new Decoder( false );
+        }
+    };
+
+    /**
+     * Pool of low-memory decoders, see {@link #small}.
+     */
+    static final ObjectPool<Decoder> SMALL_POOL = new ObjectPool<Decoder>()
+    {
+        @Override
+        protected Decoder create()
+        {
+            return new Decoder( true );
+        }
+    };
+
+    /**
+     * Whether this decoder uses compact layout, equivalent to small mode of <em>bzip2</em>.
+     * <p>
+     * Instead of {@code tt}, which takes 4 bytes per block byte, retrieved block is held in {@code ll16} and IBWT
+     * vector is packed into {@code ll16} and {@code ll4}, taking 2.5 bytes per block byte. Characters aren't stored in
+     * the vector at all, they are found in cumulative character counts. The price is slower decoding, as the IBWT
+     * vector is traversed sequentially and its entries are unpacked one by one.
+     */
+    final boolean small;
+
     boolean rand; /* block randomized */
 
     int bwt_idx; /* BWT primary index */
@@ -33,7 +69,120 @@ class Decoder
 
     int[] ftab = new int[256]; /* frequency table used in counting sort */
 
-    int[] tt = new int[900000];
+    /**
+     * IBWT linked list. Grown on demand by {@link #reserve}, so that decoders used only for small blocks don't hold
+     * memory needed by the largest ones. Dropped while {@code direct_tt} is used instead.
+     */
+    int[] tt = new int[0];
+
+    /**
+     * IBWT linked list taken from {@code memory}, or {@code null} if {@code tt} is used. Off-heap list is emitted
+     * by {@link #emitSmall}, so that the hot loop of {@link #emit} doesn't pay for buffer access.
+     */
+    IntBuffer direct_tt;
+
+    /**
+     * Arena of working memory of decompressor using this decoder, or {@code null}.
+     */
+    private WorkingMemory memory;
+
+    /**
+     * Retrieved block in low-memory mode, and later 16 low bits of IBWT vector.
+     */
+    char[] ll16 = new char[0];
+
+    /**
+     * 4 high bits of IBWT vector in low-memory mode, two entries per byte.
+     */
+    private byte[] ll4 = new byte[0];
+
+    /**
+     * Cumulative character counts in low-memory mode, {@code cftab[c]} being the number of characters less than
+     * {@code c}.
+     */
+    private int[] cftab;
+
+    /**
+     * Character of the first column of BWT matrix in every 256th row in low-memory mode.
+     */
+    private byte[] fbucket = new byte[0];
+
+    /**
+     * Derandomization state in low-memory and off-heap mode: index into {@code rand_table} and position of the next
+     * character to be flipped.
+     */
+    private int rand_i;
+
+    private int rand_next;
+
+    /**
+     * Blocks at least this large are decoded by traversing IBWT linked list in interleaved order. Lists of smaller
+     * blocks fit in cache, so they are traversed sequentially.
+     */
+    static final int MIN_INTERLEAVED = 1 << 16;
+
+    /**
+     * Number of segments IBWT linked list is split into.
+     */
+    private static final int SEGMENTS = 64;
+
+    /**
+     * Number of segments traversed at the same time.
+     */
+    private static final int LANES = 8;
+
+    /**
+     * Flag marking list nodes at which segments start. Pointers are at most 20 bits long, so bit 28 is free.
+     */
+    private static final int MARK = 1 << 28;
+
+    /**
+     * Size of chunks of {@code scratch} handed out to lanes, and its binary logarithm.
+     */
+    private static final int CHUNK_SHIFT = 12;
+
+    private static final int CHUNK = 1 << CHUNK_SHIFT;
+
+    /**
+     * Characters of segments traversed by lanes, or copy of randomized block, or {@code null} until first needed. Each
+     * lane stores characters of segments it traverses one after another, in chunks taken from this array as the lane
+     * needs them. Lanes traverse no more than {@code block_size} nodes in total, so the array takes just over 1 byte
+     * per block byte.
+     */
+    private byte[] scratch = new byte[0];
+
+    /**
+     * Offsets of chunks of {@code scratch} held by each lane, in order in which the lane took them.
+     */
+    private final int[][] chunks = new int[LANES][0];
+
+    /*
+     * State of interleaved traversal. For each segment: its start node, lane which traversed it, offset of its first
+     * character within characters stored by that lane, offset past its last character, and its successor. For each
+     * lane: current node, segment being traversed or -1, number of characters stored and offset of its current chunk.
+     */
+    private final int[] seg_start = new int[SEGMENTS];
+
+    private final int[] seg_lane = new int[SEGMENTS];
+
+    private final int[] seg_offset = new int[SEGMENTS];
+
+    private final int[] seg_end = new int[SEGMENTS];
+
+    private final int[] seg_next = new int[SEGMENTS];
+
+    private final int[] lane_row = new int[LANES];
+
+    private final int[] lane_seg = new int[LANES];
+
+    private final int[] lane_pos = new int[LANES];
+
+    private final int[] lane_chunk = new int[LANES];
+
+    /**
+     * Offset of the first chunk of {@code scratch} not yet taken by any lane.
+     */
+    private int next_chunk;
 
     private int rle_state; /* FSA state */
 
@@ -47,8 +196,86 @@ class Decoder
 
     private int rle_prev; /* previous character */
 
+    Decoder( boolean small )
+    {
+        this.small = small;
+        if ( small )
+            cftab = new int[257];
+    }
+
+    /**
+     * Get pool of decoders of given kind.
+     */
+    static ObjectPool<Decoder> pool( boolean small )
+    {
+        return small ? SMALL_POOL : POOL;
+    }
+
+    /**
+     * Set arena of working memory IBWT list is taken from. List taken from the previous arena is returned to it, so
+     * decoders must be detached from arenas before they are returned to pools.
+     *
+     * @param memory arena of working memory, or {@code null} if the heap is used
+     */
+    void setMemory( WorkingMemory memory )
+    {
+        if ( memory == this.memory )
+            return;
+
+        if ( this.memory != null )
+        {
+            this.memory.release( direct_tt );
+            direct_tt = null;
+        }
+
+        this.memory = memory;
+    }
+
+    /**
+     * Make sure that blocks of given size fit in this decoder.
+     *
+     * @param mbs maximal block size
+     */
+    void reserve( int mbs )
+    {
+        if ( small )
+        {
+            if ( ll16.length < mbs )
+            {
+                ll16 = new char[mbs];
+                ll4 = new byte[( mbs + 1 ) / 2];
+                fbucket = new byte[( mbs + 255 ) >> 8];
+            }
+        }
+        else
+        {
+            /* Heap list is replaced by one from the arena even if it's large enough, as pooled decoders have one. */
+            if ( memory != null && ( direct_tt == null || direct_tt.capacity() < mbs ) )
+            {
+                memory.release( direct_tt );
+                direct_tt = memory.ints( mbs );
+                if ( direct_tt != null )
+                    tt = new int[0];
+            }
+
+            if ( direct_tt == null && tt.length < mbs )
+                tt = new int[mbs];
+        }
+    }
+
     void decode()
     {
+        if ( small )
+        {
+            decodeSmall();
+            return;
+        }
+        if ( direct_tt != null )
+        {
+            decodeDirect();
+            return;
+        }
+
         int i, j = 0;
         int cum;
         int uc;
@@ -79,50 +306,239 @@ class Decoder
         assert ( ftab[255] == block_size );
 
         /**
-         * Derandomize the block if necessary.
-         * <p>
-         * The derandomization algorithm is implemented inefficiently, but the assumption is that randomized blocks are
-         * unlikely to be encountered. Most of bzip2 implementations try to avoid randomizing blocks because it usually
-         * leads to decreased compression ratio.
+         * Large lists are traversed in interleaved order, which also linearizes them. Randomized blocks are linearized
+         * too, in order to be derandomized.
          */
-        if ( rand )
+        if ( block_size >= MIN_INTERLEAVED )
         {
-            byte[] block;
-
-            /* Allocate a temporary array to hold the block. */
-            block = new byte[block_size];
+            traverseInterleaved();
+        }
+        else if ( rand )
+        {
+            if ( scratch.length < block_size )
+                scratch = new byte[block_size];
+            final byte[] block = scratch;
 
-            /* Copy the IBWT linked list into the temporary array. */
+            /* Copy the IBWT linked list into the temporary array, and reform a linear list from it. */
             j = tt[bwt_idx];
             for ( i = 0; i < block_size; i++ )
             {
                 j = tt[j >> 8];
                 block[i] = (byte) j;
             }
+            for ( i = 0; i < block_size; i++ )
+                tt[i] = ( ( i + 1 ) << 8 ) + ( block[i] & 0xFF );
+        }
 
-            /* Derandomize the block. */
+        /**
+         * Derandomize the block if necessary.
+         * <p>
+         * The derandomization algorithm is implemented inefficiently, but the assumption is that randomized blocks are
+         * unlikely to be encountered. Most of bzip2 implementations try to avoid randomizing blocks because it usually
+         * leads to decreased compression ratio.
+         */
+        if ( rand )
+        {
             i = 0;
             j = RAND_THRESH;
             while ( j < block_size )
             {
-                block[j] ^= 1;
+                tt[j] ^= 1;
                 i = ( i + 1 ) & 0x1FF;
                 j += rand_table[i];
             }
-
-            /* Reform a linked list from the array. */
-            for ( i = 0; i < block_size; i++ )
-                tt[i] = ( ( i + 1 ) << 8 ) + block[i];
         }
 
+        boolean linear = rand || block_size >= MIN_INTERLEAVED;
         rle_state = 0;
         rle_crc = -1;
-        rle_index = rand ? 0 : tt[bwt_idx];
+        rle_index = linear ? 0 : tt[bwt_idx];
         rle_avail = block_size;
         rle_prev = 0;
         rle_char = 0;
     }
 
+    /**
+     * Linearize IBWT linked list, so that node {@code i} holds the {@code i}-th character of the block and points to
+     * node {@code i+1}.
+     * <p>
+     * Following the list costs a cache miss per node, and each load depends on the previous one, so a single traversal
+     * is bound by memory latency. Instead, nodes spread over the whole list are marked as segment starts, splitting it
+     * into segments, which can be traversed independently. Several lanes traverse segments at the same time, so that
+     * many cache misses are in flight. Each lane stores characters of segments it traversed in {@code scratch}, and
+     * records which segment start the traversal ran into. Finally segments are concatenated in list order, starting
+     * with the one at primary index, and written back to the list.
+     * <p>
+     * If the block is periodic, the list traversed from primary index is shorter than the block and it's repeated as
+     * many times as needed. Segments lying on other (isomorphic) lists are simply ignored.
+     */
+    private void traverseInterleaved()
+    {
+        final int[] t = tt;
+        final IntBuffer d = direct_tt;
+        final int n = block_size;
+        final int[] start = seg_start;
+        final int[] end = seg_end;
+        final int[] next = seg_next;
+        final int[] row = lane_row;
+        final int[] seg = lane_seg;
+        final int[] pos = lane_pos;
+
+        int size = ( ( n + CHUNK - 1 ) & -CHUNK ) + LANES * CHUNK;
+        if ( scratch.length < size || chunks[0].length < size >> CHUNK_SHIFT )
+        {
+            scratch = new byte[size];
+            for ( int l = 0; l < LANES; l++ )
+                chunks[l] = new int[size >> CHUNK_SHIFT];
+        }
+        final byte[] buf = scratch;
+        next_chunk = 0;
+
+        /* Segment 0 starts at primary index, others at nodes evenly spaced in the array. */
+        int ns = 0;
+        start[ns++] = node( bwt_idx ) >> 8;
+        mark( start[0] );
+        for ( int i = 1; i < SEGMENTS; i++ )
+        {
+            int r = (int) ( (long) i * n / SEGMENTS );
+            if ( ( node( r ) & MARK ) == 0 )
+            {
+                mark( r );
+                start[ns++] = r;
+            }
+        }
+
+        int active = 0;
+        int ready = 0;
+        for ( int l = 0; l < LANES; l++ )
+        {
+            pos[l] = 0;
+            seg[l] = -1;
+            if ( ready < ns )
+            {
+                startSegment( l, ready++ );
+                active++;
+            }
+        }
+
+        while ( active > 0 )
+        {
+            for ( int l = 0; l < LANES; l++ )
+            {
+                int s = seg[l];
+                if ( s < 0 )
+                    continue;
+
+                int r = row[l];
+                int x = d == null ? t[r] : d.get( r );
+                if ( ( x & MARK ) == 0 )
+                {
+                    int p = pos[l];
+                    if ( ( p & ( CHUNK - 1 ) ) == 0 )
+                        takeChunk( l, p );
+                    buf[lane_chunk[l] + ( p & ( CHUNK - 1 ) )] = (byte) x;
+                    pos[l] = p + 1;
+                    row[l] = x >> 8;
+                    continue;
+                }
+
+                /* Ran into start of another segment (or this one, if the list was traversed fully). */
+                end[s] = pos[l];
+                next[s] = r;
+                if ( ready < ns )
+                {
+                    startSegment( l, ready++ );
+                }
+                else
+                {
+                    seg[l] = -1;
+                    active--;
+                }
+            }
+        }
+
+        /* Find successors of segments. */
+        for ( int s = 0; s < ns; s++ )
+        {
+            int k = 0;
+            while ( start[k] != next[s] )
+                k++;
+            next[s] = k;
+        }
+
+        /* Concatenate segments in list order, forming a linear list. */
+        int s = 0;
+        for ( int i = 0; i < n; )
+        {
+            final int[] c = chunks[seg_lane[s]];
+            int p = seg_offset[s];
+            int e = Math.min( end[s], p + n - i );
+            while ( p < e )
+            {
+                int base = c[p >> CHUNK_SHIFT] - ( p & -CHUNK );
+                int q = Math.min( e, ( p | ( CHUNK - 1 ) ) + 1 );
+                if ( d == null )
+                {
+                    for ( ; p < q; p++, i++ )
+                        t[i] = ( ( i + 1 ) << 8 ) + ( buf[base + p] & 0xFF );
+                }
+                else
+                {
+                    for ( ; p < q; p++, i++ )
+                        d.put( i, ( ( i + 1 ) << 8 ) + ( buf[base + p] & 0xFF ) );
+                }
+            }
+            s = next[s];
+        }
+    }
+
+    /**
+     * Get node of IBWT linked list, whether it's held on the heap or not.
+     */
+    private int node( int i )
+    {
+        return direct_tt == null ? tt[i] : direct_tt.get( i );
+    }
+
+    /**
+     * Mark node of IBWT linked list as segment start.
+     */
+    private void mark( int i )
+    {
+        if ( direct_tt == null )
+            tt[i] |= MARK;
+        else
+            direct_tt.put( i, direct_tt.get( i ) | MARK );
+    }
+
+    /**
+     * Give lane a new chunk of {@code scratch}, starting at given offset within characters stored by the lane.
+     */
+    private void takeChunk( int l, int p )
+    {
+        lane_chunk[l] = next_chunk;
+        chunks[l][p >> CHUNK_SHIFT] = next_chunk;
+        next_chunk += CHUNK;
+    }
+
+    /**
+     * Make given lane start traversing given segment. The first node is consumed immediately, as it's marked.
+     */
+    private void startSegment( int l, int s )
+    {
+        int p = lane_pos[l];
+        if ( ( p & ( CHUNK - 1 ) ) == 0 )
+            takeChunk( l, p );
+
+        int x = node( seg_start[s] );
+        seg_lane[s] = l;
+        seg_offset[s] = p;
+        scratch[lane_chunk[l] + ( p & ( CHUNK - 1 ) )] = (byte) x;
+        lane_pos[l] = p + 1;
+        lane_row[l] = ( x & ~MARK ) >> 8;
+        lane_seg[l] = s;
+    }
+
     /**
      * Emit decoded block into buffer buf of size *buf_sz. Buffer size is updated to reflect the remaining space left in
      * the buffer.
@@ -135,9 +551,11 @@ class Decoder
     Status emit( byte[] buf, int off, int[] buf_sz )
         throws StreamFormatException
     {
+        if ( small || direct_tt != null )
+            return emitSmall( buf, off, buf_sz );
+
         int p; /* IBWT linked list pointer */
         int a; /* available input bytes */
-        int s; /* CRC checksum */
         int c; /* current character */
         int d; /* next character */
         int[] t; /* IBWT linked list base address */
@@ -148,7 +566,6 @@ class Decoder
         b = off;
         m = buf_sz[0];
 
-        s = rle_crc;
         p = rle_index;
         a = rle_avail;
         c = rle_char;
@@ -169,7 +586,6 @@ class Decoder
                 if ( m-- == 0 )
                     break;
                 buf[b++] = (byte) c;
-                s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
                 if ( c != d )
                     break;
                 if ( a-- == 0 )
@@ -183,7 +599,6 @@ class Decoder
                     break;
                 }
                 buf[b++] = (byte) c;
-                s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
                 if ( c != d )
                     break;
                 if ( a-- == 0 )
@@ -197,7 +612,6 @@ class Decoder
                     break;
                 }
                 buf[b++] = (byte) c;
-                s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
                 if ( c != d )
                     break;
                 if ( a-- == 0 )
@@ -208,20 +622,15 @@ class Decoder
                 if ( m < c )
                 {
                     c -= m;
-                    while ( m-- != 0 )
-                    {
-                        buf[b++] = (byte) d;
-                        s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ d];
-                    }
+                    Arrays.fill( buf, b, b + m, (byte) d );
+                    b += m;
+                    m = -1;
                     rle_state = 4;
                     break;
                 }
                 m -= c;
-                while ( c-- != 0 )
-                {
-                    buf[b++] = (byte) d;
-                    s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ d];
-                }
+                Arrays.fill( buf, b, b + c, (byte) d );
+                b += c;
             case 0:
                 if ( a-- == 0 )
                     break;
@@ -234,7 +643,6 @@ class Decoder
                     break;
                 }
                 buf[b++] = (byte) c;
-                s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
         }
 
         if ( a != -1 && m != -1 )
@@ -252,7 +660,6 @@ class Decoder
                     break;
                 }
                 buf[b++] = (byte) c;
-                s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
                 if ( c != d )
                 {
                     if ( a-- == 0 )
@@ -266,7 +673,6 @@ class Decoder
                         break;
                     }
                     buf[b++] = (byte) c;
-                    s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
                     if ( c != d )
                     {
                         if ( a-- == 0 )
@@ -280,7 +686,6 @@ class Decoder
                             break;
                         }
                         buf[b++] = (byte) c;
-                        s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
                         if ( c != d )
                         {
                             if ( a-- == 0 )
@@ -294,7 +699,6 @@ class Decoder
                                 break;
                             }
                             buf[b++] = (byte) c;
-                            s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
                             if ( c != d )
                                 continue;
                         }
@@ -310,7 +714,6 @@ class Decoder
                     break;
                 }
                 buf[b++] = (byte) c;
-                s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
                 if ( c != d )
                     continue;
                 if ( a-- == 0 )
@@ -323,7 +726,6 @@ class Decoder
                     break;
                 }
                 buf[b++] = (byte) c;
-                s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
                 if ( c != d )
                     continue;
                 if ( a-- == 0 )
@@ -333,20 +735,15 @@ class Decoder
                 if ( m < c )
                 {
                     c -= m;
-                    while ( m-- != 0 )
-                    {
-                        buf[b++] = (byte) d;
-                        s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ d];
-                    }
+                    Arrays.fill( buf, b, b + m, (byte) d );
+                    b += m;
+                    m = -1;
                     rle_state = 4;
                     break;
                 }
                 m -= c;
-                while ( c-- != 0 )
-                {
-                    buf[b++] = (byte) d;
-                    s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ d];
-                }
+                Arrays.fill( buf, b, b + c, (byte) d );
+                b += c;
                 if ( a-- == 0 )
                     break;
                 p = t[p >> 8];
@@ -357,13 +754,15 @@ class Decoder
                     break;
                 }
                 buf[b++] = (byte) c;
-                s = ( s << 8 ) ^ crc_table[( s >>> 24 ) ^ c];
             }
         }
 
         /* Exactly one of `a' and `m' is equal to M1. */
         assert ( ( a == -1 ) != ( m == -1 ) );
 
+        /* Update CRC with all bytes emitted, in bulk. */
+        rle_crc = Crc.update( rle_crc, buf, off, b - off );
+
         rle_avail = a;
         if ( m == -1 )
         {
@@ -371,14 +770,222 @@ class Decoder
             rle_index = p;
             rle_char = c;
             rle_prev = d;
-            rle_crc = s;
             buf_sz[0] = 0;
             return MORE;
         }
 
         assert ( a == -1 );
-        crc = s ^ -1;
+        crc = rle_crc ^ -1;
         buf_sz[0] = m;
         return OK;
     }
+
+    private int getLL( int i )
+    {
+        return ll16[i] | ( ( ll4[i >> 1] >> ( ( i & 1 ) << 2 ) ) & 0xF ) << 16;
+    }
+
+    private void setLL( int i, int v )
+    {
+        int shift = ( i & 1 ) << 2;
+        ll16[i] = (char) v;
+        ll4[i >> 1] = (byte) ( ( ll4[i >> 1] & ( 0xF0 >> shift ) ) | ( v >> 16 ) << shift );
+    }
+
+    /**
+     * Find character of the first column of BWT matrix in given row. Search starts with the character of the first row
+     * of 256-row bucket given row belongs to, which is usually the right one already.
+     */
+    private int indexIntoF( int i )
+    {
+        final int[] C = cftab;
+        int c = fbucket[i >> 8] & 0xFF;
+        while ( C[c + 1] <= i )
+            c++;
+        return c;
+    }
+
+    /**
+     * Low-memory counterpart of {@link #decode}.
+     * <p>
+     * The LF mapping is computed in place of retrieved characters, and then the cycle going through primary index is
+     * reversed, which turns the LF mapping into IBWT vector for all rows of that cycle. Other rows are never visited.
+     */
+    private void decodeSmall()
+    {
+        int i, j;
+        int cum = 0;
+
+        for ( i = 0; i < 256; i++ )
+        {
+            cftab[i] = cum;
+            cum += ftab[i];
+            ftab[i] = cftab[i];
+        }
+        cftab[256] = cum;
+        assert ( cum == block_size );
+
+        int c = 0;
+        for ( i = 0; i < block_size; i += 256 )
+        {
+            while ( cftab[c + 1] <= i )
+                c++;
+            fbucket[i >> 8] = (byte) c;
+        }
+
+        for ( i = 0; i < block_size; i++ )
+            setLL( i, ftab[ll16[i]]++ );
+
+        i = bwt_idx;
+        j = getLL( i );
+        do
+        {
+            int tmp = getLL( j );
+            setLL( j, i );
+            i = j;
+            j = tmp;
+        }
+        while ( i != bwt_idx );
+
+        rand_i = 0;
+        rand_next = rand ? RAND_THRESH : Integer.MAX_VALUE;
+
+        rle_state = 0;
+        rle_crc = -1;
+        rle_index = bwt_idx;
+        rle_avail = block_size;
+        rle_prev = -1;
+        rle_char = 0;
+    }
+
+    /**
+     * Off-heap counterpart of {@link #decode}. IBWT linked list is constructed and linearized the same way, but
+     * characters are derandomized while they are emitted, and lists of small blocks are not linearized at all.
+     */
+    private void decodeDirect()
+    {
+        final IntBuffer t = direct_tt;
+        int i, uc;
+        int cum = 0;
+
+        for ( i = 0; i < 256; i++ )
+            ftab[i] = ( cum += ftab[i] ) - ftab[i];
+        assert ( cum == block_size );
+
+        for ( i = 0; i < block_size; i++ )
+        {
+            uc = t.get( i ) & 0xFF;
+            t.put( ftab[uc], t.get( ftab[uc] ) + ( i << 8 ) );
+            ftab[uc]++;
+        }
+
+        if ( block_size >= MIN_INTERLEAVED )
+            traverseInterleaved();
+
+        rand_i = 0;
+        rand_next = rand ? RAND_THRESH : Integer.MAX_VALUE;
+
+        rle_state = 0;
+        rle_crc = -1;
+        rle_index = block_size >= MIN_INTERLEAVED ? 0 : t.get( bwt_idx ) >> 8;
+        rle_avail = block_size;
+        rle_prev = -1;
+        rle_char = 0;
+    }
+
+    /**
+     * Low-memory and off-heap counterpart of {@link #emit}.
+     * <p>
+     * {@code rle_state} holds the number of consecutive equal characters emitted so far (up to 4, after which run
+     * length follows), and {@code rle_char} holds the number of repetitions of the last character which remain to be
+     * emitted.
+     */
+    private Status emitSmall( byte[] buf, int off, int[] buf_sz )
+        throws StreamFormatException
+    {
+        int p = rle_index;
+        int a = rle_avail;
+        int r = rle_state;
+        int n = rle_char;
+        int d = rle_prev;
+        int b = off;
+        int m = buf_sz[0];
+
+        for ( ;; )
+        {
+            if ( n > 0 )
+            {
+                int k = Math.min( n, m );
+                Arrays.fill( buf, b, b + k, (byte) d );
+                b += k;
+                m -= k;
+                n -= k;
+                if ( n > 0 )
+                    break;
+            }
+
+            if ( a == 0 )
+            {
+                if ( r == 4 )
+                    throw new StreamFormatException( "ERR_RUNLEN" );
+                break;
+            }
+            if ( r < 4 && m == 0 )
+                break;
+
+            int c;
+            if ( small )
+            {
+                c = indexIntoF( p );
+                p = getLL( p );
+            }
+            else
+            {
+                int x = direct_tt.get( p );
+                c = x & 0xFF;
+                p = x >> 8;
+            }
+            if ( block_size - a == rand_next )
+            {
+                c ^= 1;
+                rand_i = ( rand_i + 1 ) & 0x1FF;
+                rand_next += rand_table[rand_i];
+            }
+            a--;
+
+            if ( r == 4 )
+            {
+                n = c;
+                r = 0;
+                continue;
+            }
+
+            buf[b++] = (byte) c;
+            m--;
+            if ( c == d )
+            {
+                r++;
+            }
+            else
+            {
+                d = c;
+                r = 1;
+            }
+        }
+
+        rle_crc = Crc.update( rle_crc, buf, off, b - off );
+
+        rle_index = p;
+        rle_avail = a;
+        rle_state = r;
+        rle_char = n;
+        rle_prev = d;
+        buf_sz[0] = m;
+
+        if ( a != 0 || n != 0 )
+            return MORE;
+
+        crc = rle_crc ^ -1;
+        return OK;
+    }
 }
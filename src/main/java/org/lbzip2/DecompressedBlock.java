@@ -15,25 +15,129 @@
  */
 package org.lbzip2;
 
+import static org.lbzip2.Status.MORE;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
+ * Fully decompressed contents of a single block.
+ * <p>
+ * The whole block is decoded at once, which allows decompression to be done in a different thread than the one which
+ * reads decompressed data. The buffer holding decompressed data is kept between blocks, so the same instance can be
+ * reused to hold many blocks, one after another.
+ *
  * @author Mikolaj Izdebski
  */
 public class DecompressedBlock
     extends AbstractDataSource
 {
+    private byte[] buffer = new byte[0];
+
+    private int size;
+
+    private int offset;
+
+    private final int[] avail = new int[1];
+
+    /**
+     * Decode block which was retrieved into given decoder and store the result in this block, replacing any previous
+     * contents.
+     *
+     * @param ds decoder holding retrieved block
+     * @param crc expected block CRC
+     * @throws StreamFormatException if block is invalid
+     */
+    void decode( Decoder ds, int crc )
+        throws StreamFormatException
+    {
+        if ( ds.bwt_idx >= ds.block_size )
+            throw new StreamFormatException( "ERR_BWTIDX" );
+
+        ds.decode();
+
+        /* Initial RLE can't shrink data by more than 4 bytes per 5, so start with a buffer large enough for that. */
+        int estimate = ds.block_size + ds.block_size / 4;
+        if ( buffer.length < estimate )
+            buffer = new byte[estimate];
+
+        final int[] avail = this.avail;
+        size = 0;
+        offset = 0;
+        for ( ;; )
+        {
+            avail[0] = buffer.length - size;
+            Status status = ds.emit( buffer, size, avail );
+            size = buffer.length - avail[0];
+            if ( status != MORE )
+                break;
+
+            byte[] newBuffer = new byte[2 * buffer.length];
+            System.arraycopy( buffer, 0, newBuffer, 0, size );
+            buffer = newBuffer;
+        }
+
+        if ( ds.crc != crc )
+            throw new StreamFormatException( "Invalid block CRC" );
+    }
+
+    /**
+     * Get size of decompressed data.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Set offset within decompressed data from which next read starts.
+     */
+    void seek( int offset )
+    {
+        this.offset = offset;
+    }
+
+    @Override
+    public int read( ByteBuffer dst )
+    {
+        int n = Math.min( dst.remaining(), size - offset );
+        dst.put( buffer, offset, n );
+        offset += n;
+        return n;
+    }
+
+    /**
+     * Write all remaining decompressed data to given channel.
+     *
+     * @param channel channel to write data to
+     * @return number of bytes written
+     * @throws IOException if I/O error occurs
+     */
+    int write( WritableByteChannel channel )
+        throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap( buffer, offset, size - offset );
+        while ( bb.hasRemaining() )
+            channel.write( bb );
+
+        int n = size - offset;
+        offset = size;
+        return n;
+    }
+
     public boolean isEmpty()
         throws IOException
     {
-        // TODO Auto-generated method stub
-        return false;
+        return offset == size;
     }
 
     public int read( byte[] buf, int off, int len )
         throws IOException
     {
-        // TODO Auto-generated method stub
-        return 0;
+        int n = Math.min( len, size - offset );
+        System.arraycopy( buffer, offset, buf, off, n );
+        offset += n;
+        return n;
     }
 }
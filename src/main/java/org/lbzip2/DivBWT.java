@@ -43,12 +43,26 @@ package org.lbzip2;
 
 import static org.lbzip2.Constants.CHARACTER_BIAS;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Burrows-Wheeler transform based on <em>divsufsort</em> suffix sorting algorithm.
+ * <p>
+ * Type B* substrings are sorted bucket by bucket, and buckets are independent of each other until ranks of substrings
+ * are computed. When an executor is set, buckets are sorted by several tasks at the same time, each task having its
+ * own substring sorter and its own part of free space in suffix array as merge buffer. The calling thread sorts
+ * buckets too, so the transform completes even if the executor doesn't run any of the tasks.
+ * 
  * @author Mikolaj Izdebski
  */
 final class DivBWT
@@ -60,6 +74,35 @@ final class DivBWT
 
     private final TandemRepeatSort TR = new TandemRepeatSort();
 
+    /**
+     * Bucket array, reused between transforms. It is cleared by {@code sort_typeBstar}.
+     */
+    private final int[] bucket = new int[ALPHABET_SIZE * ALPHABET_SIZE + ALPHABET_SIZE];
+
+    /**
+     * Executor used to sort B* buckets in parallel, or {@code null} if buckets are sorted in the calling thread.
+     */
+    private Executor executor;
+
+    private int parallelism = 1;
+
+    /**
+     * Substring sorters used by tasks running in the executor.
+     */
+    private SubstringSort[] helpers = new SubstringSort[0];
+
+    /**
+     * Ranges of non-trivial B* buckets, stored as pairs of the first and past the last index, allocated when buckets
+     * are sorted in parallel for the first time.
+     */
+    private int[] ranges;
+
+    /**
+     * Minimal number of B* suffixes for which buckets are sorted in parallel. Smaller blocks are sorted faster than
+     * tasks can be started.
+     */
+    private static final int PARALLEL_THRESHOLD = 16384;
+
     private static final boolean DEBUG = true;
 
     /*- Settings -*/
@@ -130,13 +173,30 @@ final class DivBWT
     /*- Private Functions -*/
 
     /**
-     * Sort suffixes of type B*.
+     * Check whether the first run of equal characters of text is followed by a larger character (or ends the text).
+     *
+     * @return {@code 1} if it is, {@code 0} otherwise
      */
-    private final int sort_typeBstar( final byte[] T, final int[] SA, final int[] bucket, final int n )
+    private static int first_run_flag( final byte[] T, final int n )
     {
-        int xpa;
-        int buf;
-        int i, j, k, t, m, bufsize;
+        for ( int i = 1; i < n; ++i )
+        {
+            if ( T[i - 1] != T[i] )
+            {
+                return T[i - 1] > T[i] ? 0 : 1;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Count suffixes of each type, and store the beginning positions of all type B* suffixes at the end of SA.
+     *
+     * @return number of type B* suffixes
+     */
+    private final int count_suffixes( final byte[] T, final int[] SA, final int[] bucket, final int n )
+    {
+        int i, m;
         int c0, c1;
         int flag;
 
@@ -149,17 +209,7 @@ final class DivBWT
          * Count the number of occurrences of the first one or two characters of each type A, B and B* suffix. Moreover,
          * store the beginning position of all type B* suffixes into the array SA.
          */
-        for ( i = 1, flag = 1; i < n; ++i )
-        {
-            if ( T[i - 1] != T[i] )
-            {
-                if ( T[i - 1] > T[i] )
-                {
-                    flag = 0;
-                }
-                break;
-            }
-        }
+        flag = first_run_flag( T, n );
         i = n - 1;
         m = n;
         c0 = T[n - 1];
@@ -213,6 +263,20 @@ final class DivBWT
             logger.trace( "    Number of type B* suffixes: {} ({} %, {} % of type B suffixes)", m,
                           String.format( "%.2f", 100.0 * m / n ), String.format( "%.2f", 100.0 * m / ( n - num_a ) ) );
         }
+        return m;
+    }
+
+    /**
+     * Sort suffixes of type B*, which were counted by {@link #count_suffixes}.
+     */
+    private final int sort_typeBstar( final byte[] T, final int[] SA, final int[] bucket, final int m, final int n )
+    {
+        int xpa;
+        int buf;
+        int i, j, k, t, bufsize;
+        int c0, c1;
+        int flag;
+
         if ( m == 0 )
         {
             return 0;
@@ -253,16 +317,23 @@ final class DivBWT
         SA[BUCKET_BSTAR_DEC( bucket, c0, c1 )] = m - 1;
 
         /* Sort the type B* substrings using sssort. */
-        buf = m;
-        bufsize = n - ( 2 * m );
-        for ( c0 = LAST_CHAR - 1, j = m; 0 < j; --c0 )
+        if ( executor != null && parallelism > 1 && m >= PARALLEL_THRESHOLD )
         {
-            for ( c1 = LAST_CHAR; c0 < c1; j = i, --c1 )
+            sort_typeBstar_parallel( T, SA, bucket, xpa, m, n );
+        }
+        else
+        {
+            buf = m;
+            bufsize = n - ( 2 * m );
+            for ( c0 = LAST_CHAR - 1, j = m; 0 < j; --c0 )
             {
-                i = BUCKET_BSTAR( bucket, c0, c1 );
-                if ( 1 < ( j - i ) )
+                for ( c1 = LAST_CHAR; c0 < c1; j = i, --c1 )
                 {
-                    SS.sssort( T, SA, xpa, i, j, buf, bufsize, 2, n, SA[i] == ( m - 1 ) );
+                    i = BUCKET_BSTAR( bucket, c0, c1 );
+                    if ( 1 < ( j - i ) )
+                    {
+                        SS.sssort( T, SA, xpa, i, j, buf, bufsize, 2, n, SA[i] == ( m - 1 ) );
+                    }
                 }
             }
         }
@@ -299,6 +370,7 @@ final class DivBWT
         TR.trsort( SA, m );
 
         /* Set the sorted order of type B* suffixes. */
+        flag = first_run_flag( T, n );
         i = n - 1;
         j = m;
         c0 = T[n - 1];
@@ -473,10 +545,170 @@ final class DivBWT
         return orig;
     }
 
+    /**
+     * Sort B* buckets using several tasks. Each task takes the next unsorted bucket until all buckets are sorted.
+     */
+    private final void sort_typeBstar_parallel( final byte[] T, final int[] SA, final int[] bucket, final int xpa,
+                                                final int m, final int n )
+    {
+        int i, j, c0, c1;
+        int count = 0;
+
+        if ( ranges == null )
+            ranges = new int[ALPHABET_SIZE * ( ALPHABET_SIZE - 1 )];
+
+        for ( c0 = LAST_CHAR - 1, j = m; 0 < j; --c0 )
+        {
+            for ( c1 = LAST_CHAR; c0 < c1; j = i, --c1 )
+            {
+                i = BUCKET_BSTAR( bucket, c0, c1 );
+                if ( 1 < ( j - i ) )
+                {
+                    ranges[count++] = i;
+                    ranges[count++] = j;
+                }
+            }
+        }
+
+        if ( helpers.length < parallelism - 1 )
+        {
+            SubstringSort[] newHelpers = new SubstringSort[parallelism - 1];
+            System.arraycopy( helpers, 0, newHelpers, 0, helpers.length );
+            for ( i = helpers.length; i < newHelpers.length; i++ )
+                newHelpers[i] = new SubstringSort();
+            helpers = newHelpers;
+        }
+
+        logger.trace( "    Sorting {} buckets using {} tasks", count / 2, parallelism );
+
+        final AtomicInteger next = new AtomicInteger();
+        final int bufsize = ( n - ( 2 * m ) ) / parallelism;
+        BucketSorter[] sorters = new BucketSorter[parallelism - 1];
+        List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>( parallelism - 1 );
+
+        for ( i = 0; i < sorters.length; i++ )
+        {
+            int buf = m + ( i + 1 ) * bufsize;
+            sorters[i] = new BucketSorter( helpers[i], T, SA, xpa, m, n, buf, bufsize, count, next );
+            FutureTask<Object> task = new FutureTask<Object>( sorters[i], null );
+            tasks.add( task );
+            executor.execute( task );
+        }
+
+        BucketSorter sorter = new BucketSorter( SS, T, SA, xpa, m, n, m, bufsize, count, next );
+        sorter.run();
+
+        /*
+         * Tasks which didn't start yet are prevented from starting, as there is nothing left for them to do. Others
+         * finish as soon as their last bucket is sorted.
+         */
+        boolean interrupted = false;
+        for ( i = 0; i < sorters.length; i++ )
+        {
+            FutureTask<Object> task = tasks.get( i );
+            if ( sorters[i].claim() )
+                continue;
+
+            for ( ;; )
+            {
+                try
+                {
+                    task.get();
+                    break;
+                }
+                catch ( InterruptedException e )
+                {
+                    interrupted = true;
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( e.getCause() instanceof RuntimeException )
+                        throw (RuntimeException) e.getCause();
+                    if ( e.getCause() instanceof Error )
+                        throw (Error) e.getCause();
+                    throw new IllegalStateException( e.getCause() );
+                }
+            }
+        }
+
+        if ( interrupted )
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Task sorting B* buckets, until there are no more buckets to sort.
+     */
+    private final class BucketSorter
+        implements Runnable
+    {
+        private final SubstringSort ss;
+
+        private final byte[] T;
+
+        private final int[] SA;
+
+        private final int xpa, m, n, buf, bufsize, count;
+
+        private final AtomicInteger next;
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        BucketSorter( SubstringSort ss, byte[] T, int[] SA, int xpa, int m, int n, int buf, int bufsize, int count,
+                      AtomicInteger next )
+        {
+            this.ss = ss;
+            this.T = T;
+            this.SA = SA;
+            this.xpa = xpa;
+            this.m = m;
+            this.n = n;
+            this.buf = buf;
+            this.bufsize = bufsize;
+            this.count = count;
+            this.next = next;
+        }
+
+        /**
+         * Claim the right to run this task.
+         * 
+         * @return {@code true} if the task wasn't started or claimed before
+         */
+        boolean claim()
+        {
+            return claimed.compareAndSet( false, true );
+        }
+
+        public void run()
+        {
+            if ( !claim() )
+                return;
+
+            int k;
+            while ( ( k = 2 * next.getAndIncrement() ) < count )
+            {
+                int first = ranges[k];
+                int last = ranges[k + 1];
+                ss.sssort( T, SA, xpa, first, last, buf, bufsize, 2, n, SA[first] == ( m - 1 ) );
+            }
+        }
+    }
+
     /*---------------------------------------------------------------------------*/
 
     /*- Function -*/
 
+    /**
+     * Sort B* buckets of subsequent transforms using given executor, splitting the work into given number of tasks.
+     * 
+     * @param executor executor used to run sorting tasks, or {@code null} to sort in the calling thread only
+     * @param parallelism number of tasks, including the calling thread
+     */
+    void setExecutor( Executor executor, int parallelism )
+    {
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
     /**
      * Construct BWT transform of text T[0..n-1] and store it in SA[0..n-1].
      * <p>
@@ -486,8 +718,6 @@ final class DivBWT
      */
     public final int transform( final byte[] T, final int[] SA, final int n )
     {
-        int m, pidx, i;
-
         logger.trace( "Running DivBWT (block size is {})", n );
 
         /* Check arguments. */
@@ -498,12 +728,35 @@ final class DivBWT
             return 0;
         }
 
+        return transform( T, SA, n, countBstar( T, SA, n ) );
+    }
+
+    /**
+     * Count suffixes of type B* of text T[0..n-1], where n is at least 2. Suffix counts are left in the bucket array
+     * and positions of B* suffixes in SA, so that the text can be transformed by {@link #transform(byte[], int[], int,
+     * int)} without being scanned again.
+     * 
+     * @return number of type B* suffixes
+     */
+    final int countBstar( final byte[] T, final int[] SA, final int n )
+    {
         T[n] = T[0];
+        return count_suffixes( T, SA, bucket, n );
+    }
 
-        final int[] bucket = new int[ALPHABET_SIZE * ALPHABET_SIZE + ALPHABET_SIZE];
+    /**
+     * Construct BWT transform of text whose suffixes were just counted by {@link #countBstar}.
+     * 
+     * @param m number of type B* suffixes
+     * @return BWT primary index
+     */
+    final int transform( final byte[] T, final int[] SA, final int n, int m )
+    {
+        int pidx, i;
+        final int[] bucket = this.bucket;
 
         /* Burrows-Wheeler Transform. */
-        m = sort_typeBstar( T, SA, bucket, n );
+        m = sort_typeBstar( T, SA, bucket, m, n );
         if ( 0 < m )
         {
             pidx = construct_BWT( T, SA, bucket, n );
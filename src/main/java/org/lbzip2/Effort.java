@@ -0,0 +1,66 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+/**
+ * Compression effort, controlling how much work is spent on entropy coding of each block.
+ * <p>
+ * Effort doesn't affect block size, nor the Burrows-Wheeler transform, which usually takes most of compression time.
+ * Higher effort gives slightly better compression ratio at the cost of more CPU time spent on building prefix codes.
+ * All effort levels produce <em>bz2</em> files which can be decompressed by any conforming decompressor.
+ * 
+ * @author Mikolaj Izdebski
+ */
+public enum Effort
+{
+    /**
+     * Few iterations of tree clustering and plain Huffman codes whenever they don't exceed maximal code length.
+     */
+    FAST( 2, false, false ),
+
+    /**
+     * Default effort, a reasonable trade-off between speed and compression ratio.
+     */
+    DEFAULT( 10, true, false ),
+
+    /**
+     * More iterations of tree clustering, trying every possible number of prefix trees for each block.
+     */
+    BEST( 20, true, true );
+
+    /**
+     * Number of iterations of Expectation-Maximization algorithm used to cluster groups of symbols into trees.
+     */
+    final int iterations;
+
+    /**
+     * Whether codes are always built with Package-Merge algorithm, which chooses code lengths minimizing block size.
+     * Otherwise plain Huffman codes are used, unless they are too long.
+     */
+    final boolean packageMerge;
+
+    /**
+     * Whether each number of trees is tried, as opposed to choosing number of trees based on block size alone.
+     */
+    final boolean treeSearch;
+
+    private Effort( int iterations, boolean packageMerge, boolean treeSearch )
+    {
+        this.iterations = iterations;
+        this.packageMerge = packageMerge;
+        this.treeSearch = treeSearch;
+    }
+}
@@ -20,16 +20,29 @@ import static org.lbzip2.Constants.MAX_SELECTORS;
 import static org.lbzip2.Constants.MAX_TREES;
 import static org.lbzip2.Constants.MIN_TREES;
 
+import java.lang.ref.SoftReference;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Block encoder.
+ * <p>
+ * Encoder owns all working memory needed to compress a block &ndash; suffix array, MTF values, BWT buckets and entropy
+ * coder tables. Working arrays are grown on demand to fit the largest block encoded so far and are reused for all
+ * subsequent blocks, so that compressing a block in steady state doesn't produce any garbage other than the resulting
+ * compressed block. Each thread has its own encoder, which is used for blocks compressed by that thread, regardless of
+ * the stream they belong to.
+ * 
  * @author Mikolaj Izdebski
  */
 final class Encoder
 {
+    private static final ThreadLocal<SoftReference<Encoder>> encoders = new ThreadLocal<SoftReference<Encoder>>();
+
     private final Logger logger = LoggerFactory.getLogger( Encoder.class );
 
     private final int[] cmap = new int[256];
@@ -44,7 +57,18 @@ final class Encoder
 
     private int p_off;
 
-    private final short[] mtfv;
+    /**
+     * MTF values of block being encoded. Taken from {@link WorkingMemory} of the block if possible, otherwise it wraps
+     * {@code heap_mtfv}.
+     */
+    private ShortBuffer mtfv;
+
+    private short[] heap_mtfv = new short[0];
+
+    /**
+     * Suffix array, transformed in place into BWT.
+     */
+    private int[] SA = new int[0];
 
     private int nmtf;
 
@@ -54,22 +78,42 @@ final class Encoder
 
     private int out_expect_len;
 
-    private final UncompressedBlock col;
+    private UncompressedBlock col;
 
-    private final EntropyCoder ec;
+    private final EntropyCoder ec = new EntropyCoder();
 
-    private final BWT bwt = new DivBWT();
+    private final AdaptiveBWT bwt = new AdaptiveBWT();
 
     private int block_crc;
 
     private final boolean[] inuse = new boolean[256];
 
-    private Encoder( UncompressedBlock col, EntropyCoder ec )
+    private final int[] pack = new int[16];
+
+    private Encoder()
+    {
+    }
+
+    /**
+     * Get encoder of the current thread. The encoder is softly reachable while it's not used, so that memory it holds
+     * can be reclaimed under memory pressure. A thread waiting for trees of the previous block may encode that block
+     * itself while its own encoder is busy, in which case a temporary encoder is used.
+     */
+    private static Encoder getInstance()
     {
-        this.col = col;
-        this.ec = ec;
+        SoftReference<Encoder> ref = encoders.get();
+        Encoder encoder = ref != null ? ref.get() : null;
+
+        if ( encoder != null && encoder.col != null )
+            return new Encoder();
+
+        if ( encoder == null )
+        {
+            encoder = new Encoder();
+            encoders.set( new SoftReference<Encoder>( encoder ) );
+        }
 
-        mtfv = new short[col.size + GROUP_SIZE];
+        return encoder;
     }
 
     private int do_mtf( int[] SA, int[] mtffreq, int nblock )
@@ -114,7 +158,9 @@ final class Encoder
 
             while ( k != 0 )
             {
-                mtffreq[mtfv[mtfv_off++] = (short) ( --k & 1 )]++;
+                t = --k & 1;
+                mtfv.put( mtfv_off++, (short) t );
+                mtffreq[t]++;
                 k >>= 1;
             }
 
@@ -136,17 +182,19 @@ final class Encoder
                 order[p] = u;
             }
             t = p + 2;
-            mtfv[mtfv_off++] = (short) t;
+            mtfv.put( mtfv_off++, (short) t );
             mtffreq[t]++;
         }
 
         while ( k != 0 )
         {
-            mtffreq[mtfv[mtfv_off++] = (short) ( --k & 1 )]++;
+            t = --k & 1;
+            mtfv.put( mtfv_off++, (short) t );
+            mtffreq[t]++;
             k >>= 1;
         }
 
-        mtfv[mtfv_off++] = (short) EOB;
+        mtfv.put( mtfv_off++, (short) EOB );
         mtffreq[EOB]++;
 
         return mtfv_off;
@@ -163,13 +211,21 @@ final class Encoder
         int j; /* value after MTF */
         int p; /* MTF state */
 
-        /* Sort block. */
+        /* Make sure working arrays are large enough for current block. */
         assert ( col.size > 0 );
-        int[] SA = new int[col.size + 1];
+        if ( SA.length < col.size + 1 )
+            SA = new int[col.size + 1];
+        mtfv = col.memory != null ? col.memory.shorts( col.size + GROUP_SIZE ) : null;
+        if ( mtfv == null )
+        {
+            if ( heap_mtfv.length < col.size + GROUP_SIZE )
+                heap_mtfv = new short[col.size + GROUP_SIZE];
+            mtfv = ShortBuffer.wrap( heap_mtfv );
+        }
+
+        /* Sort block. */
         bwt_idx = bwt.transform( col.block, SA, col.size );
         nmtf = do_mtf( SA, ec.code[0], col.size );
-        logger.debug( "Block info: bs={}, idx={}, nm={}, as={}", col.size, bwt_idx, nmtf, mtfv[nmtf - 1] + 1 );
-        SA = null;
 
         cost = 48 /* header */
             + 32 /* crc */
@@ -183,6 +239,9 @@ final class Encoder
             + 00; /* {mtfv} */
 
         cost += ec.generate_prefix_code( mtfv, nmtf );
+        if ( logger.isDebugEnabled() )
+            logger.debug( "Block info: bs={}, idx={}, nm={}, as={}, bwt={}, nt={}, em={}", col.size, bwt_idx, nmtf,
+                          mtfv.get( nmtf - 1 ) + 1, bwt.getLastEngine(), ec.num_trees, ec.iterations );
 
         sp = 0;
         smp = 0;
@@ -251,8 +310,11 @@ final class Encoder
         block_crc = col.crc;
         System.arraycopy( col.inuse, 0, inuse, 0, 256 );
 
-        logger.debug( "Block transmission cost is {} bytes", cost );
-        logger.debug( "Block CRC is {}", String.format( "%08X", col.crc ^ -1 ) );
+        if ( logger.isDebugEnabled() )
+        {
+            logger.debug( "Block transmission cost is {} bytes", cost );
+            logger.debug( "Block CRC is {}", String.format( "%08X", col.crc ^ -1 ) );
+        }
 
         return cost;
     }
@@ -288,7 +350,7 @@ final class Encoder
         p = buf;
         p_off = 0;
 
-        as = mtfv[nmtf - 1] + 1;
+        as = mtfv.get( nmtf - 1 ) + 1;
         ns = ( nmtf + GROUP_SIZE - 1 ) / GROUP_SIZE;
 
         /* Transmit block metadata. */
@@ -300,7 +362,7 @@ final class Encoder
 
         /* Transmit character map. */
         {
-            int[] pack = new int[16];
+            final int[] pack = this.pack;
             int big = 0;
 
             for ( int i = 0; i < 16; i++ )
@@ -376,7 +438,7 @@ final class Encoder
 
             for ( int i = 0; i < GROUP_SIZE; i++ )
             {
-                mv = mtfv[mtfv_off++];
+                mv = mtfv.get( mtfv_off++ );
                 SEND( B[mv], L[mv] );
             }
         }
@@ -389,14 +451,44 @@ final class Encoder
         assert ( p_off == out_expect_len );
     }
 
-    static CompressedBlock encode( UncompressedBlock uncompressedBlock )
+    /**
+     * Encode given block using encoder of the current thread.
+     * 
+     * @param uncompressedBlock block to encode
+     * @param executor executor used to sort parts of the block and to search for the best number of trees in parallel,
+     *            or {@code null}
+     * @param parallelism number of tasks sorting the block, including the calling thread
+     */
+    static CompressedBlock encode( UncompressedBlock uncompressedBlock, Executor executor, int parallelism )
     {
-        Encoder encoder = new Encoder( uncompressedBlock, new EntropyCoder( 10 ) );
-        int blockSize = uncompressedBlock.size;
-        int compressedSize = encoder.encode();
-        byte[] buffer = new byte[compressedSize];
-        int crc = encoder.block_crc;
-        encoder.transmit( buffer );
-        return new CompressedBlock( buffer, blockSize, crc );
+        Encoder encoder = getInstance();
+        encoder.col = uncompressedBlock;
+        encoder.ec.setEffort( uncompressedBlock.getEffort() );
+        encoder.ec.setExecutor( executor, parallelism );
+        encoder.ec.setSeed( uncompressedBlock.seed, uncompressedBlock.nextSeed );
+        encoder.bwt.setExecutor( executor, parallelism );
+
+        try
+        {
+            int blockSize = uncompressedBlock.size;
+            int compressedSize = encoder.encode();
+            byte[] buffer = new byte[compressedSize];
+            int crc = encoder.block_crc;
+            encoder.transmit( buffer );
+            return new CompressedBlock( buffer, blockSize, crc, uncompressedBlock.inputSize );
+        }
+        finally
+        {
+            if ( uncompressedBlock.memory != null )
+                uncompressedBlock.memory.release( encoder.mtfv );
+            encoder.mtfv = null;
+            encoder.col = null;
+            encoder.p = null;
+            encoder.ec.setExecutor( null, 1 );
+            encoder.ec.setSeed( null, null );
+            if ( uncompressedBlock.nextSeed != null )
+                uncompressedBlock.nextSeed.done();
+            encoder.bwt.setExecutor( null, 1 );
+        }
     }
 }
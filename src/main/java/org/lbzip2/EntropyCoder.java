@@ -24,11 +24,19 @@ import static org.lbzip2.Constants.MAX_CODE_LENGTH;
 import static org.lbzip2.Constants.MAX_HUFF_CODE_LENGTH;
 import static org.lbzip2.Constants.MAX_SELECTORS;
 import static org.lbzip2.Constants.MAX_TREES;
+import static org.lbzip2.Constants.MIN_TREES;
 import static org.lbzip2.Constants.MIN_ALPHA_SIZE;
 import static org.lbzip2.Utils.ilog2;
 import static org.lbzip2.Utils.insertion_sort;
 
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,11 +49,12 @@ final class EntropyCoder
     private final Logger logger = LoggerFactory.getLogger( EntropyCoder.class );
 
     /**
-     * A constant used to determine number of iterations of Expectation-Maximization algorithm.
+     * Effort determining number of iterations of Expectation-Maximization algorithm, the way number of trees is chosen
+     * and whether Package-Merge algorithm is used.
      * <p>
-     * More iterations possibly give higher compression ratio, but also increased CPU usage.
+     * More effort possibly gives higher compression ratio, but also increased CPU usage.
      */
-    private final int cluster_factor;
+    private Effort effort = Effort.DEFAULT;
 
     /**
      * Number of selectors used to encode current block (1-18001).
@@ -94,9 +103,221 @@ final class EntropyCoder
      */
     final int[] tmap_old2new = new int[MAX_TREES];
 
-    public EntropyCoder( int cluster_factor )
+    /*
+     * Working arrays, allocated once and reused for all blocks coded by this instance.
+     */
+
+    private final int[][] frequency = new int[MAX_TREES][MAX_ALPHA_SIZE + 1];
+
+    private final long[] len_pack = new long[MAX_ALPHA_SIZE + 1];
+
+    private final long[] pkg_weight = new long[MAX_CODE_LENGTH + 1];
+
+    private final long[] prev_weight = new long[MAX_CODE_LENGTH + 1];
+
+    private final long[] curr_weight = new long[MAX_CODE_LENGTH + 1];
+
+    private final long[] weight = new long[MAX_ALPHA_SIZE + 1];
+
+    private final int[] V = new int[MAX_ALPHA_SIZE];
+
+    private final int[] count = new int[MAX_HUFF_CODE_LENGTH + 2];
+
+    private final int[] base_code = new int[MAX_CODE_LENGTH + 1];
+
+    private final short[][] tree = new short[MAX_CODE_LENGTH + 1][MAX_CODE_LENGTH + 1];
+
+    private final int[] mtf_state = new int[MAX_TREES];
+
+    private Executor executor;
+
+    private int parallelism = 1;
+
+    /**
+     * Coders used to try each number of trees, allocated when first needed.
+     */
+    private EntropyCoder[] helpers;
+
+    /**
+     * Code lengths of the previous block to start with, or {@code null}.
+     */
+    private Seed seed;
+
+    /**
+     * Where code lengths are saved for the next block, or {@code null}.
+     */
+    private Seed nextSeed;
+
+    /**
+     * Clustering is considered to have converged when at most one in {@code CONVERGENCE_RATIO} selectors changed in an
+     * iteration.
+     */
+    private static final int CONVERGENCE_RATIO = 1000;
+
+    /**
+     * Number of iterations of Expectation-Maximization algorithm done for the current block, reported in block info
+     * logged by {@code Encoder}.
+     */
+    int iterations;
+
+    /**
+     * Number of bits it takes to code the last group examined by {@link #find_best_tree}.
+     */
+    private long group_cost;
+
+    /**
+     * Code lengths of a coded block, used as initial trees of the next block of the same stream.
+     * <p>
+     * When blocks are coded concurrently, the next block may need trees before they are saved, in which case it waits
+     * for them. Waiting for trees of a block which didn't start being compressed yet would risk exhausting executor
+     * threads, so such block is compressed by the waiting thread instead.
+     */
+    static final class Seed
     {
-        this.cluster_factor = cluster_factor;
+        private final byte[][] length = new byte[MAX_TREES][MAX_ALPHA_SIZE];
+
+        /**
+         * Number of trees saved, or {@code 0} if no trees were saved.
+         */
+        private int nt;
+
+        /**
+         * Alphabet size of saved trees.
+         */
+        private int as;
+
+        /**
+         * Whether trees were saved, or it is known they won't be.
+         */
+        private boolean ready = true;
+
+        /**
+         * Task compressing the block trees are expected from, or {@code null}.
+         */
+        private FutureTask<?> producer;
+
+        /**
+         * Expect trees to be saved by given task. Until then, or until the task is finished, blocks loading trees wait.
+         */
+        synchronized void expect( FutureTask<?> producer )
+        {
+            this.producer = producer;
+            ready = false;
+        }
+
+        /**
+         * Save final trees of given coder, in order in which they are transmitted.
+         */
+        synchronized void save( EntropyCoder ec, int as )
+        {
+            for ( int t = 0; t < ec.num_trees; t++ )
+                System.arraycopy( ec.length[ec.tmap_new2old[t]], 0, length[t], 0, as );
+            this.nt = ec.num_trees;
+            this.as = as;
+            ready = true;
+            notifyAll();
+        }
+
+        /**
+         * Signal that coding of the block is over, whether or not trees were saved.
+         */
+        synchronized void done()
+        {
+            ready = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait until trees are saved.
+         * 
+         * @return number of trees saved, which is {@code 0} if the block was not coded successfully
+         */
+        int await()
+        {
+            FutureTask<?> task;
+            synchronized ( this )
+            {
+                task = ready ? null : producer;
+            }
+            if ( task == null )
+                return nt();
+
+            /* Run the task if it didn't start yet. Otherwise this returns immediately. */
+            task.run();
+
+            boolean interrupted = false;
+            synchronized ( this )
+            {
+                while ( !ready && !task.isCancelled() )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        interrupted = true;
+                    }
+                }
+            }
+
+            if ( interrupted )
+                Thread.currentThread().interrupt();
+            return nt();
+        }
+
+        private synchronized int nt()
+        {
+            return ready ? nt : 0;
+        }
+
+        /**
+         * Load given number of saved trees. Symbols which are absent in saved trees get the longest code.
+         */
+        synchronized void load( byte[][] dst, int nt, int as )
+        {
+            for ( int t = 0; t < nt; t++ )
+            {
+                System.arraycopy( length[t], 0, dst[t], 0, min( as, this.as ) );
+                for ( int v = this.as; v < as; v++ )
+                    dst[t][v] = MAX_CODE_LENGTH;
+            }
+        }
+    }
+
+    /**
+     * Start clustering of subsequent blocks with trees of the previous block, and save trees of each block coded.
+     * Clustering started with previous trees stops as soon as it stops improving the cost of coding the block.
+     * Previous trees are not used when effort requires all numbers of trees to be tried.
+     * 
+     * @param seed trees of the previous block, or {@code null} to start from scratch
+     * @param nextSeed where to save trees for the next block, or {@code null}
+     */
+    void setSeed( Seed seed, Seed nextSeed )
+    {
+        this.seed = seed;
+        this.nextSeed = nextSeed;
+    }
+
+    /**
+     * Set effort used to code subsequent blocks.
+     */
+    void setEffort( Effort effort )
+    {
+        this.effort = effort;
+    }
+
+    /**
+     * Try numbers of trees of subsequent blocks using given executor, when effort requires all numbers of trees to be
+     * tried.
+     * 
+     * @param executor executor used to run coding tasks, or {@code null} to code in the calling thread only
+     * @param parallelism number of tasks, including the calling thread
+     */
+    void setExecutor( Executor executor, int parallelism )
+    {
+        this.executor = executor;
+        this.parallelism = parallelism;
     }
 
     private long weight_add( long w1, long w2 )
@@ -207,9 +428,9 @@ final class EntropyCoder
      */
     private void package_merge( short[][] tree, int[] count, long[] leaf_weight, int as )
     {
-        long[] pkg_weight = new long[MAX_CODE_LENGTH + 1];
-        long[] prev_weight = new long[MAX_CODE_LENGTH + 1];
-        long[] curr_weight = new long[MAX_CODE_LENGTH + 1];
+        final long[] pkg_weight = this.pkg_weight;
+        final long[] prev_weight = this.prev_weight;
+        final long[] curr_weight = this.curr_weight;
         int width;
         int next_depth;
         int depth;
@@ -282,9 +503,9 @@ final class EntropyCoder
         int k;
         int d;
         int c;
-        long[] weight = new long[MAX_ALPHA_SIZE];
-        int[] V = new int[MAX_ALPHA_SIZE];
-        int[] count = new int[MAX_HUFF_CODE_LENGTH + 2];
+        final long[] weight = this.weight;
+        final int[] V = this.V;
+        final int[] count = this.count;
 
         assert ( as >= MIN_ALPHA_SIZE );
         assert ( as <= MAX_ALPHA_SIZE );
@@ -422,9 +643,9 @@ final class EntropyCoder
      * @param gs group start index
      * @param nt number of trees
      * @param len_pack packed code lengths
-     * @return best tree number
+     * @return best tree number, cost of coding the group with that tree is stored in {@code group_cost}
      */
-    private int find_best_tree( short[] mtfv, int gs, int nt, long[] len_pack )
+    private int find_best_tree( ShortBuffer mtfv, int gs, int nt, long[] len_pack )
     {
         long c, bc; /* code length, best code length */
         int t, bt; /* tree, best tree */
@@ -436,7 +657,7 @@ final class EntropyCoder
          */
         cp = 0;
         for ( int i = 0; i < GROUP_SIZE; i++ )
-            cp += len_pack[mtfv[gs++]];
+            cp += len_pack[mtfv.get( gs++ )];
 
         /* At the beginning assume the first tree is the best. */
         bc = cp & 0x3ff;
@@ -457,6 +678,7 @@ final class EntropyCoder
         }
 
         /* Return our favorite. */
+        group_cost = bc;
         return bt;
     }
 
@@ -470,15 +692,24 @@ final class EntropyCoder
         int height;
         int next_code;
         int symbol;
-        long[] leaf_weight = new long[MAX_ALPHA_SIZE + 1];
-        int[] count = new int[MAX_HUFF_CODE_LENGTH + 2];
-        int[] base_code = new int[MAX_CODE_LENGTH + 1];
-        short[][] tree = new short[MAX_CODE_LENGTH + 1][MAX_CODE_LENGTH + 1];
+        final long[] leaf_weight = this.weight;
+        final int[] count = this.count;
+        final int[] base_code = this.base_code;
+        final short[][] tree = this.tree;
         int best_cost;
         int best_height;
         int depth;
         int cost;
 
+        if ( !effort.packageMerge )
+        {
+            cost = assign_huffman_codes( code, length, frequency, as );
+            if ( cost >= 0 )
+                return cost;
+
+            /* Some codes were too long. Lengths left by Huffman algorithm are overwritten by package-merge below. */
+        }
+
         for ( leaf = 0; leaf < as; leaf++ )
             leaf_weight[leaf + 1] = ( ( (long) frequency[leaf] << 32 ) | 0x10000 | ( MAX_ALPHA_SIZE - leaf ) );
         insertion_sort( leaf_weight, 1, as + 1 );
@@ -571,28 +802,97 @@ final class EntropyCoder
         return best_cost;
     }
 
+    /**
+     * Assign prefix-free codes built with plain Huffman algorithm, without trying to minimize cost of transmitting the
+     * tree. Return cost of transmitting the tree and all symbols it codes, or {@code -1} if some codes would be longer
+     * than maximal code length. In the latter case no codes are assigned, but {@code length} is already overwritten
+     * with unlimited code lengths, so the caller must assign lengths again.
+     */
+    private int assign_huffman_codes( int[] code, byte[] length, int[] frequency, int as )
+    {
+        final int[] count = this.count;
+        final int[] base_code = this.base_code;
+        int symbol;
+        int depth;
+        int next_code;
+        int cost;
+
+        make_code_lengths( length, frequency, as );
+
+        Arrays.fill( count, 0 );
+        cost = 0;
+        for ( symbol = 0; symbol < as; symbol++ )
+        {
+            if ( length[symbol] > MAX_CODE_LENGTH )
+                return -1;
+            count[length[symbol]]++;
+            cost += frequency[symbol] * length[symbol];
+        }
+
+        for ( symbol = 1; symbol < as; symbol++ )
+            cost += 2 * abs( length[symbol - 1] - length[symbol] );
+        cost += 5 + as;
+
+        next_code = 0;
+        for ( depth = 1; depth <= MAX_CODE_LENGTH; depth++ )
+        {
+            base_code[depth] = next_code;
+            next_code = ( next_code + count[depth] ) << 1;
+        }
+
+        for ( symbol = 0; symbol < as; symbol++ )
+            code[symbol] = base_code[length[symbol]]++;
+
+        return cost;
+    }
+
+    /**
+     * Compute cost of transmitting selectors of current block, after trees were reordered.
+     */
+    private int selector_cost()
+    {
+        final int[] state = mtf_state;
+        int cost = 0;
+        int sp = 0;
+        int c;
+
+        for ( int t = 0; t < MAX_TREES; t++ )
+            state[t] = t;
+
+        while ( ( c = selector[sp++] ) != MAX_TREES )
+        {
+            c = tmap_old2new[c];
+
+            int j = 0;
+            while ( state[j] != c )
+                j++;
+            System.arraycopy( state, 0, state, 1, j );
+            state[0] = c;
+            cost += j + 1;
+        }
+
+        return cost;
+    }
+
     /**
      * The main function for generating prefix code for the whole block.
      * <p>
-     * Input: MTF values Output: trees and selectors
-     * <p>
-     * What this function does: 1) decides how many trees to generate 2) divides groups into equivalence classes (using
-     * Expectation-Maximization algorithm, which is a heuristic usually giving suboptimal results) 3) generates an
-     * optimal prefix tree for each class (with a hubrid algorithm consisting of Huffman algorithm and Package-Merge
-     * algorithm) 4) generates selectors 5) sorts trees by their first occurence in selector sequence 6) computes and
-     * returns cost (in bits) of transmitting trees and codes
+     * Unless effort requires all numbers of trees to be tried, the number of trees is chosen based on the number of
+     * MTF values. Otherwise the block is coded with each number of trees by a separate helper coder, and results of the
+     * helper giving the lowest cost of transmitting trees, selectors and codes are copied. When an executor is set,
+     * helpers run concurrently. Return cost of transmitting trees and codes.
      */
-    int generate_prefix_code( short[] mtfv, int nm )
+    int generate_prefix_code( ShortBuffer mtfv, int nm )
     {
         int as;
         int nt;
-        int iter, i;
-        int cost;
+        int i;
 
-        int[][] frequency = new int[MAX_TREES][MAX_ALPHA_SIZE + 1];
+        as = mtfv.get( nm - 1 ) + 1; /* the last mtfv is EOB */
 
-        as = mtfv[nm - 1] + 1; /* the last mtfv is EOB */
-        num_selectors = ( nm + GROUP_SIZE - 1 ) / GROUP_SIZE;
+        /* Complete the last group with dummy symbols. */
+        for ( i = nm; i % GROUP_SIZE != 0; i++ )
+            mtfv.put( i, (short) as );
 
         /*
          * Decide how many prefix-free trees to use for current block. The best for compression ratio would be to always
@@ -603,20 +903,218 @@ final class EntropyCoder
         assert ( nm >= 2 );
         nt = min( ilog2( ( nm - 1 ) / 150 ) + 2, MAX_TREES );
 
-        /* Complete the last group with dummy symbols. */
-        for ( i = nm; i < num_selectors * GROUP_SIZE; i++ )
-            mtfv[i] = (short) as;
+        if ( !effort.treeSearch )
+        {
+            int cost = generate_prefix_code( mtfv, nm, nt );
+            if ( nextSeed != null )
+                nextSeed.save( this, as );
+            return cost;
+        }
+
+        /* There is no point in having more trees than groups. */
+        int max_nt = min( MAX_TREES, max( ( nm + GROUP_SIZE - 1 ) / GROUP_SIZE, MIN_TREES ) );
+        int count = max_nt - MIN_TREES + 1;
+
+        if ( helpers == null )
+        {
+            helpers = new EntropyCoder[MAX_TREES - MIN_TREES + 1];
+            for ( i = 0; i < helpers.length; i++ )
+                helpers[i] = new EntropyCoder();
+        }
+
+        TreeCountSearch[] searches = new TreeCountSearch[count];
+        List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>( count );
+        boolean parallel = executor != null && parallelism > 1;
+
+        for ( i = 0; i < count; i++ )
+        {
+            searches[i] = new TreeCountSearch( helpers[i], mtfv, nm, MIN_TREES + i );
+            tasks.add( new FutureTask<Object>( searches[i], null ) );
+        }
+
+        /*
+         * Larger numbers of trees take longer to code, so they are handed over to the executor, up to the number of
+         * tasks allowed. The rest is done by the calling thread.
+         */
+        if ( parallel )
+        {
+            for ( i = count - 1; i > 0 && i >= count - ( parallelism - 1 ); i-- )
+                executor.execute( tasks.get( i ) );
+        }
+
+        /*
+         * Searches which didn't start yet are run in the calling thread. Otherwise wait for them to finish.
+         */
+        boolean interrupted = false;
+        for ( i = 0; i < count; i++ )
+        {
+            if ( searches[i].claim() )
+            {
+                searches[i].search();
+                continue;
+            }
+
+            for ( ;; )
+            {
+                try
+                {
+                    tasks.get( i ).get();
+                    break;
+                }
+                catch ( InterruptedException e )
+                {
+                    interrupted = true;
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( e.getCause() instanceof RuntimeException )
+                        throw (RuntimeException) e.getCause();
+                    if ( e.getCause() instanceof Error )
+                        throw (Error) e.getCause();
+                    throw new IllegalStateException( e.getCause() );
+                }
+            }
+        }
+
+        if ( interrupted )
+            Thread.currentThread().interrupt();
+
+        TreeCountSearch best = searches[0];
+        for ( i = 1; i < count; i++ )
+        {
+            logger.trace( "Coding with {} trees costs {} bits", searches[i].nt, searches[i].cost );
+            if ( searches[i].cost < best.cost )
+                best = searches[i];
+        }
+
+        logger.debug( "Best number of trees is {}", best.nt );
+        copyFrom( best.coder );
+        if ( nextSeed != null )
+            nextSeed.save( this, as );
+        return best.code_cost;
+    }
+
+    /**
+     * Copy trees and selectors generated by another coder.
+     */
+    private void copyFrom( EntropyCoder other )
+    {
+        iterations = other.iterations;
+        num_selectors = other.num_selectors;
+        num_trees = other.num_trees;
+
+        for ( int t = 0; t < MAX_TREES; t++ )
+        {
+            System.arraycopy( other.length[t], 0, length[t], 0, MAX_ALPHA_SIZE + 1 );
+            System.arraycopy( other.code[t], 0, code[t], 0, MAX_ALPHA_SIZE + 1 );
+        }
+
+        System.arraycopy( other.selector, 0, selector, 0, num_selectors + 1 );
+        System.arraycopy( other.tmap_new2old, 0, tmap_new2old, 0, MAX_TREES );
+        System.arraycopy( other.tmap_old2new, 0, tmap_old2new, 0, MAX_TREES );
+    }
+
+    /**
+     * Task coding a block with given number of trees, using a helper coder.
+     */
+    private final class TreeCountSearch
+        implements Runnable
+    {
+        final EntropyCoder coder;
+
+        private final ShortBuffer mtfv;
+
+        private final int nm;
+
+        final int nt;
+
+        /**
+         * Cost of transmitting trees and codes.
+         */
+        int code_cost;
+
+        /**
+         * Cost of transmitting trees, selectors and codes.
+         */
+        int cost;
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        TreeCountSearch( EntropyCoder coder, ShortBuffer mtfv, int nm, int nt )
+        {
+            this.coder = coder;
+            this.mtfv = mtfv;
+            this.nm = nm;
+            this.nt = nt;
+        }
+
+        /**
+         * Claim the right to run this task.
+         * 
+         * @return {@code true} if the task wasn't started or claimed before
+         */
+        boolean claim()
+        {
+            return claimed.compareAndSet( false, true );
+        }
+
+        void search()
+        {
+            coder.effort = effort;
+            System.arraycopy( code[0], 0, coder.code[0], 0, MAX_ALPHA_SIZE + 1 );
+            code_cost = coder.generate_prefix_code( mtfv, nm, nt );
+            cost = code_cost + coder.selector_cost();
+        }
 
-        /* Grow up an initial forest. */
-        generate_initial_trees( nm, nt );
+        public void run()
+        {
+            if ( claim() )
+                search();
+        }
+    }
+
+    /**
+     * Generate prefix code for the whole block using given number of trees.
+     * <p>
+     * Input: MTF values Output: trees and selectors
+     * <p>
+     * What this function does: 1) divides groups into equivalence classes (using Expectation-Maximization algorithm,
+     * which is a heuristic usually giving suboptimal results) 2) generates an optimal prefix tree for each class (with
+     * a hubrid algorithm consisting of Huffman algorithm and Package-Merge algorithm) 3) generates selectors 4) sorts
+     * trees by their first occurence in selector sequence 5) computes and returns cost (in bits) of transmitting trees
+     * and codes
+     */
+    private int generate_prefix_code( ShortBuffer mtfv, int nm, int nt )
+    {
+        int as;
+        int iter, i;
+        int cost;
+
+        final int[][] frequency = this.frequency;
+
+        as = mtfv.get( nm - 1 ) + 1; /* the last mtfv is EOB */
+        num_selectors = ( nm + GROUP_SIZE - 1 ) / GROUP_SIZE;
+
+        /*
+         * Start with trees of the previous block, or grow up an initial forest. If the previous block had fewer trees,
+         * the missing ones are taken from the initial forest.
+         */
+        int seeded = seed != null && !effort.treeSearch ? min( seed.await(), nt ) : 0;
+        if ( seeded < nt )
+            generate_initial_trees( nm, nt );
+        if ( seeded > 0 )
+            seed.load( length, seeded, as );
 
         /*
          * Perform a few iterations of the Expectation-Maximization algorithm to improve trees.
          */
-        iter = cluster_factor;
-        while ( iter-- > 0 )
+        long prev_cost = Long.MAX_VALUE;
+        int changes = 0;
+        for ( iter = 1; iter <= effort.iterations; iter++ )
         {
-            long[] len_pack = new long[MAX_ALPHA_SIZE + 1];
+            long total_cost = 0;
+            changes = 0;
+            final long[] len_pack = this.len_pack;
             int gs;
             int v, t;
 
@@ -642,10 +1140,13 @@ final class EntropyCoder
                  * frequencies for the chosen tree and remember the choice in the selector array.
                  */
                 t = find_best_tree( mtfv, gs, nt, len_pack );
+                total_cost += group_cost;
                 assert ( t < nt );
+                if ( selector[sp_off] != t )
+                    changes++;
                 selector[sp_off++] = (byte) t;
                 for ( i = 0; i < GROUP_SIZE; i++ )
-                    frequency[t][mtfv[gs + i]]++;
+                    frequency[t][mtfv.get( gs + i )]++;
             }
 
             assert ( sp_off == num_selectors );
@@ -654,8 +1155,27 @@ final class EntropyCoder
             /* (M): Maximization step -- maximize expectations. */
             for ( t = 0; t < nt; t++ )
                 make_code_lengths( length[t], frequency[t], as );
+
+            logger.trace( "EM iteration {}: {} selectors changed, cost is {} bits", iter, changes, total_cost );
+
+            /*
+             * Stop when clustering has converged, that is when few selectors changed. If no selector changed then
+             * subsequent iterations wouldn't change anything. Selectors of the first iteration are compared against
+             * selectors of a previous block, so they don't tell anything about convergence.
+             */
+            if ( iter > 1 && changes * CONVERGENCE_RATIO <= num_selectors )
+                break;
+
+            /* Trees of a previous block are expected to be close to optimal, so stop as soon as they stop improving. */
+            if ( seeded > 0 && total_cost >= prev_cost )
+                break;
+            prev_cost = total_cost;
         }
 
+        iterations = min( iter, effort.iterations );
+        logger.debug( "EM clustering with {} trees took {} iterations, {} selectors changed in the last one", nt,
+                      iterations, changes );
+
         cost = 0;
 
         /* Reorder trees. This also removes unused trees. */
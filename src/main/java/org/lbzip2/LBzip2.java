@@ -0,0 +1,171 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.lbzip2.Constants.MAX_BLOCK_SIZE;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * One-shot compression and decompression of byte buffers.
+ * <p>
+ * Data is read from the space remaining in source buffer and written to the space remaining in destination buffer,
+ * advancing positions of both buffers. Heap buffers are processed in place. Direct and memory-mapped buffers are
+ * processed in small chunks, so that no copy of whole input or output is made.
+ *
+ * @author Mikolaj Izdebski
+ */
+public final class LBzip2
+{
+    private LBzip2()
+    {
+    }
+
+    /**
+     * Compress all data remaining in source buffer using the largest block size.
+     *
+     * @param src buffer holding data to compress
+     * @param dst buffer to write compressed stream to
+     * @return number of bytes written to destination buffer
+     * @throws BufferOverflowException if compressed stream doesn't fit in destination buffer
+     */
+    public static int compress( ByteBuffer src, ByteBuffer dst )
+    {
+        return compress( src, dst, MAX_BLOCK_SIZE );
+    }
+
+    /**
+     * Compress all data remaining in source buffer.
+     *
+     * @param src buffer holding data to compress
+     * @param dst buffer to write compressed stream to
+     * @param maxBlockSize maximal block size
+     * @return number of bytes written to destination buffer
+     * @throws BufferOverflowException if compressed stream doesn't fit in destination buffer
+     */
+    public static int compress( ByteBuffer src, ByteBuffer dst, int maxBlockSize )
+    {
+        StreamComposer composer = new StreamComposer( maxBlockSize );
+        UncompressedBlock block = new UncompressedBlock( maxBlockSize );
+        int start = dst.position();
+
+        try
+        {
+            while ( src.hasRemaining() )
+            {
+                block.write( src );
+                composer.addBlock( block.compress() );
+                drain( composer, dst );
+            }
+        }
+        catch ( IOException e )
+        {
+            /* Block is held in memory, writing to it never fails. */
+            throw new IllegalStateException( e );
+        }
+
+        composer.finish();
+        drain( composer, dst );
+
+        return dst.position() - start;
+    }
+
+    private static void drain( StreamComposer composer, ByteBuffer dst )
+    {
+        try
+        {
+            composer.read( dst );
+            if ( !composer.isEmpty() )
+                throw new BufferOverflowException();
+        }
+        catch ( IOException e )
+        {
+            /* Composer holds compressed data in memory, it never fails to read it. */
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Decompress all data remaining in source buffer, which must hold one or more concatenated <em>bz2</em> streams.
+     * Source buffer is always consumed entirely.
+     *
+     * @param src buffer holding compressed data
+     * @param dst buffer to write decompressed data to
+     * @return number of bytes written to destination buffer
+     * @throws IOException if compressed data is invalid
+     * @throws BufferOverflowException if decompressed data doesn't fit in destination buffer
+     */
+    public static int decompress( ByteBuffer src, ByteBuffer dst )
+        throws IOException
+    {
+        LBzip2Decompressor decompressor = new LBzip2Decompressor();
+        byte[] input = null;
+        byte[] output = null;
+        byte[] probe = new byte[1];
+        int start = dst.position();
+
+        try
+        {
+            if ( src.hasArray() )
+            {
+                decompressor.setInput( src.array(), src.arrayOffset() + src.position(), src.remaining() );
+                decompressor.finish();
+            }
+            else
+            {
+                input = new byte[AbstractDataSink.CHUNK_SIZE];
+            }
+
+            while ( !decompressor.finished() )
+            {
+                if ( decompressor.needsInput() )
+                {
+                    int len = Math.min( input.length, src.remaining() );
+                    src.get( input, 0, len );
+                    decompressor.setInput( input, 0, len );
+                    if ( !src.hasRemaining() )
+                        decompressor.finish();
+                }
+                else if ( !dst.hasRemaining() )
+                {
+                    if ( decompressor.decompress( probe ) > 0 )
+                        throw new BufferOverflowException();
+                }
+                else if ( dst.hasArray() )
+                {
+                    int n = decompressor.decompress( dst.array(), dst.arrayOffset() + dst.position(), dst.remaining() );
+                    dst.position( dst.position() + n );
+                }
+                else
+                {
+                    if ( output == null )
+                        output = new byte[AbstractDataSink.CHUNK_SIZE];
+                    int n = decompressor.decompress( output, 0, Math.min( output.length, dst.remaining() ) );
+                    dst.put( output, 0, n );
+                }
+            }
+        }
+        finally
+        {
+            decompressor.end();
+        }
+
+        src.position( src.limit() );
+        return dst.position() - start;
+    }
+}
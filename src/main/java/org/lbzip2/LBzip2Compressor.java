@@ -0,0 +1,304 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.lbzip2.Constants.MAX_BLOCK_SIZE;
+
+import java.io.IOException;
+
+/**
+ * Non-blocking <em>bz2</em> compressor, modelled after {@link java.util.zip.Deflater}.
+ * <p>
+ * Uncompressed data is pushed with {@link #setInput} and compressed data is pulled with {@link #compress}, which never
+ * blocks. When {@code compress} returns zero and {@link #needsInput} is true, more input must be provided before
+ * compression can continue. After all input was given {@link #finish} must be called, and {@code compress} must be
+ * called until {@link #finished} returns true.
+ * <p>
+ * Blocks are compressed in the calling thread as soon as they are full, and compressed data is copied directly into
+ * buffers given by the caller, without any intermediate buffer. The output is the same as produced by
+ * {@link LBzip2OutputStream} with the same maximal block size.
+ * <p>
+ * Input arrays are not copied, they must not be modified until the compressor needs more input.
+ *
+ * @author Mikolaj Izdebski
+ */
+public class LBzip2Compressor
+{
+    private final int maxBlockSize;
+
+    private final UncompressedBlock block;
+
+    private StreamComposer composer;
+
+    private byte[] inBuf;
+
+    private int inOff;
+
+    private int inLen;
+
+    /**
+     * Whether the block being filled should be compressed as soon as all input is consumed, even if it's not full.
+     */
+    private boolean flush;
+
+    /**
+     * Whether no more input will be given.
+     */
+    private boolean finish;
+
+    /**
+     * Whether end of stream was added to the composer.
+     */
+    private boolean composed;
+
+    private long bytesRead;
+
+    private long bytesWritten;
+
+    /**
+     * Create a compressor using the largest block size.
+     */
+    public LBzip2Compressor()
+    {
+        this( MAX_BLOCK_SIZE );
+    }
+
+    /**
+     * Create a compressor using given block size.
+     *
+     * @param maxBlockSize maximal block size
+     */
+    public LBzip2Compressor( int maxBlockSize )
+    {
+        this.maxBlockSize = maxBlockSize;
+        block = new UncompressedBlock( maxBlockSize );
+        reset();
+    }
+
+    /**
+     * Set effort blocks are compressed with. Effort can be changed at any time, and it applies to the block being
+     * filled and to all subsequent blocks.
+     *
+     * @param effort compression effort
+     */
+    public void setEffort( Effort effort )
+    {
+        block.setEffort( effort );
+    }
+
+    /**
+     * Enable or disable warm start of entropy coding, in which prefix trees of each block are built starting with trees
+     * of the previous block.
+     *
+     * @param warmStart whether warm start should be enabled
+     * @see LBzip2OutputStream#setWarmStart
+     */
+    public void setWarmStart( boolean warmStart )
+    {
+        block.seed = warmStart ? new EntropyCoder.Seed() : null;
+        block.nextSeed = block.seed;
+    }
+
+    /**
+     * Set arena of off-heap working memory blocks are encoded with, or {@code null} to use the heap.
+     *
+     * @param memory arena of working memory
+     * @see LBzip2OutputStream#setWorkingMemory
+     */
+    public void setWorkingMemory( WorkingMemory memory )
+    {
+        block.memory = memory;
+    }
+
+    /**
+     * Set uncompressed input. Any input remaining from the previous call is discarded.
+     *
+     * @param buf input data
+     * @param off offset of the first byte of input
+     * @param len number of bytes of input
+     */
+    public void setInput( byte[] buf, int off, int len )
+    {
+        if ( off < 0 || len < 0 || off > buf.length - len )
+            throw new ArrayIndexOutOfBoundsException();
+        if ( finish )
+            throw new IllegalStateException( "Input was already finished" );
+
+        bytesRead += len;
+        inBuf = buf;
+        inOff = off;
+        inLen = off + len;
+    }
+
+    public void setInput( byte[] buf )
+    {
+        setInput( buf, 0, buf.length );
+    }
+
+    /**
+     * Check whether all input was consumed and more input is needed to continue compression.
+     */
+    public boolean needsInput()
+    {
+        return !finish && inOff >= inLen;
+    }
+
+    /**
+     * Request all input given so far to be compressed, without waiting for the current block to be filled. Flushing
+     * often makes compressed data larger.
+     */
+    public void flush()
+    {
+        flush = true;
+    }
+
+    /**
+     * Signal that no more input will be given, so that the last block and end of stream can be compressed.
+     */
+    public void finish()
+    {
+        finish = true;
+    }
+
+    /**
+     * Check whether end of stream was reached and all compressed data was returned.
+     */
+    public boolean finished()
+    {
+        return composed && isDrained();
+    }
+
+    /**
+     * Get total number of bytes of uncompressed input given so far.
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * Get total number of bytes of compressed output returned so far.
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * Compress data into given buffer.
+     *
+     * @param buf buffer for compressed data
+     * @param off offset in the buffer
+     * @param len maximal number of bytes of compressed data to return
+     * @return number of bytes of compressed data, which is zero if more input is needed or compression is finished
+     */
+    public int compress( byte[] buf, int off, int len )
+    {
+        if ( off < 0 || len < 0 || off > buf.length - len )
+            throw new ArrayIndexOutOfBoundsException();
+
+        int origLen = len;
+        while ( len > 0 )
+        {
+            if ( !isDrained() )
+            {
+                int n = drain( buf, off, len );
+                off += n;
+                len -= n;
+            }
+            else if ( inOff < inLen )
+            {
+                inOff += block.write( inBuf, inOff, inLen - inOff );
+
+                if ( block.isFull() )
+                    composer.addBlock( block.compress() );
+            }
+            else if ( ( flush || finish ) && !block.isEmpty() )
+            {
+                composer.addBlock( block.compress() );
+                flush = false;
+            }
+            else if ( finish && !composed )
+            {
+                composer.finish();
+                composed = true;
+            }
+            else
+            {
+                flush = false;
+                break;
+            }
+        }
+
+        bytesWritten += origLen - len;
+        return origLen - len;
+    }
+
+    public int compress( byte[] buf )
+    {
+        return compress( buf, 0, buf.length );
+    }
+
+    /*
+     * Composer holds compressed data in memory, so reading it never fails.
+     */
+
+    private boolean isDrained()
+    {
+        try
+        {
+            return composer.isEmpty();
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private int drain( byte[] buf, int off, int len )
+    {
+        try
+        {
+            return composer.read( buf, off, len );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Reset the compressor, so that a new stream can be compressed. Pending input and output are discarded.
+     */
+    public void reset()
+    {
+        block.reset();
+        if ( block.seed != null )
+        {
+            block.seed = new EntropyCoder.Seed();
+            block.nextSeed = block.seed;
+        }
+        composer = new StreamComposer( maxBlockSize );
+        inBuf = null;
+        inOff = 0;
+        inLen = 0;
+        flush = false;
+        finish = false;
+        composed = false;
+        bytesRead = 0;
+        bytesWritten = 0;
+    }
+}
@@ -15,18 +15,36 @@
  */
 package org.lbzip2;
 
-import static org.lbzip2.Status.FINISH;
-import static org.lbzip2.Status.MORE;
-import static org.lbzip2.Status.OK;
-
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
+ * Decompressing input stream filter.
+ * <p>
+ * By default blocks are decompressed in the reading thread. When an {@link Executor} or a number of threads is given,
+ * the reading thread only finds block boundaries ahead of the reader, using {@link StreamDecomposer}, and hands
+ * extracted blocks over to the executor, which decompresses several blocks at the same time. Decompressed data is
+ * always returned in order. The number of blocks being decompressed at the same time, and hence the amount of memory
+ * used, is bounded.
+ * <p>
+ * The stream is also a {@link ReadableByteChannel}, so that decompressed data can be read directly into byte buffers.
+ * 
  * @author Mikolaj Izdebski
  */
 public class LBzip2InputStream
     extends InputStream
+    implements ReadableByteChannel
 {
     private final InputStream is;
 
@@ -36,25 +54,229 @@ public class LBzip2InputStream
 
     private final byte[] in_buf = new byte[BUFSIZ];
 
-    private boolean emit;
+    /**
+     * Decompressor used to decompress blocks in the reading thread.
+     */
+    private final LBzip2Decompressor decompressor = new LBzip2Decompressor();
 
-    private final BitStream bitStream = new BitStream();
+    private boolean done;
 
-    private Parser parser;
+    private boolean closed;
 
-    private final Retriever retriever = new Retriever();
+    /**
+     * Buffer for chunks of data read into direct buffers in the reading thread, allocated when first needed.
+     */
+    private byte[] chunk;
 
-    private final Header hd = new Header();
+    /**
+     * Executor used to decompress blocks, or {@code null} if blocks are decompressed in the reading thread.
+     */
+    private final Executor executor;
 
-    private final Decoder decoder = new Decoder();
+    /**
+     * Executor service created by this stream, which needs to be shut down when the stream is closed.
+     */
+    private final ExecutorService ownExecutor;
 
-    private boolean done;
+    /**
+     * Maximal number of blocks retrieved, but not yet fully read.
+     */
+    private final int maxInFlight;
+
+    /**
+     * Blocks being decompressed, in stream order.
+     */
+    private final LinkedList<Job> inFlight = new LinkedList<Job>();
+
+    /**
+     * Blocks found while retrying a block in the reading thread, which were not submitted yet, in stream order.
+     */
+    private final LinkedList<UndecompressedBlock> pending = new LinkedList<UndecompressedBlock>();
+
+    /**
+     * Decoders and block buffers which can be used to decompress more blocks.
+     */
+    private final LinkedList<Job> freeJobs = new LinkedList<Job>();
+
+    /**
+     * Decompressed block currently being read, or {@code null}.
+     */
+    private Job current;
+
+    /**
+     * Block which was read most recently, used to skip blocks which turn out to be parts of it, or {@code null}.
+     */
+    private UndecompressedBlock previous;
+
+    /**
+     * Splits compressed input into blocks, which can be decompressed independently.
+     */
+    private final StreamDecomposer decomposer = new StreamDecomposer();
+
+    /**
+     * Range of {@code in_buf} which was read, but not written to decomposer yet.
+     */
+    private int inOff;
+
+    private int inLen;
+
+    /**
+     * Whether end of compressed input was reached while finding blocks ahead of the reader.
+     */
+    private boolean eos;
+
+    /**
+     * Whether low-memory decoders are used.
+     */
+    private boolean lowMemory;
+
+    /**
+     * Arena of working memory decoders take IBWT vectors from, or {@code null}.
+     */
+    private WorkingMemory memory;
+
+    /**
+     * Block decompression task, together with retriever, decoder and buffer it uses. Tasks are recycled after their
+     * block has been read, and their retrievers and decoders are returned to pools when the stream is finished.
+     */
+    private static final class Job
+        implements Callable<DecompressedBlock>
+    {
+        final Retriever retriever = Retriever.POOL.acquire();
+
+        Decoder decoder;
+
+        final DecompressedBlock block = new DecompressedBlock();
+
+        UndecompressedBlock input;
+
+        FutureTask<DecompressedBlock> future;
+
+        /**
+         * Make sure that the decoder is of given kind, and that it uses given arena of working memory.
+         */
+        void setDecoder( boolean lowMemory, WorkingMemory memory )
+        {
+            if ( decoder != null && decoder.small != lowMemory )
+                releaseDecoder();
+            if ( decoder == null )
+                decoder = Decoder.pool( lowMemory ).acquire();
+            decoder.setMemory( memory );
+        }
+
+        /**
+         * Return the decoder to its pool, together with its working memory.
+         */
+        void releaseDecoder()
+        {
+            decoder.setMemory( null );
+            Decoder.pool( decoder.small ).release( decoder );
+            decoder = null;
+        }
 
+        public DecompressedBlock call()
+            throws IOException
+        {
+            return input.decompress( retriever, decoder, block );
+        }
+    }
+
+    /**
+     * Create a decompressing stream which decompresses blocks in the reading thread.
+     * 
+     * @param is underlying input stream
+     */
     public LBzip2InputStream( InputStream is )
+    {
+        this( is, null, false, 0 );
+    }
+
+    /**
+     * Create a decompressing stream which decompresses blocks using given number of worker threads. The threads are
+     * stopped when the stream is closed.
+     * 
+     * @param is underlying input stream
+     * @param numThreads number of worker threads
+     */
+    public LBzip2InputStream( InputStream is, int numThreads )
+    {
+        this( is, newExecutor( numThreads ), true, 2 * numThreads );
+    }
+
+    /**
+     * Create a decompressing stream which decompresses blocks using given executor. The executor is not shut down when
+     * the stream is closed.
+     * 
+     * @param is underlying input stream
+     * @param executor executor used to decompress blocks
+     * @param maxInFlight maximal number of blocks retrieved ahead of the reader
+     */
+    public LBzip2InputStream( InputStream is, Executor executor, int maxInFlight )
+    {
+        this( is, executor, false, maxInFlight );
+
+        if ( executor == null )
+            throw new NullPointerException();
+        if ( maxInFlight < 1 )
+            throw new IllegalArgumentException( "At least one block must be allowed to be decompressed at a time" );
+    }
+
+    private LBzip2InputStream( InputStream is, Executor executor, boolean ownsExecutor, int maxInFlight )
     {
         this.is = is;
+        this.executor = executor;
+        this.ownExecutor = ownsExecutor ? (ExecutorService) executor : null;
+        this.maxInFlight = maxInFlight;
+    }
+
+    static ExecutorService newExecutor( int numThreads )
+    {
+        if ( numThreads < 1 )
+            throw new IllegalArgumentException( "Number of threads must be positive" );
 
-        bitStream.ptr = in_buf;
+        return Executors.newFixedThreadPool( numThreads, new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "lbzip2-decompressor" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    /**
+     * Enable or disable low-memory mode, equivalent to {@code bzip2 -s}. The mode takes effect for blocks which were
+     * not decompressed yet.
+     * <p>
+     * Low-memory decoders need about 2.5 bytes of working memory per byte of block, instead of about 5 bytes. When
+     * blocks are decompressed in parallel, each block in flight also needs a buffer for decompressed data, which
+     * low-memory mode doesn't reduce. See {@link LBzip2Decompressor#setLowMemory} for details.
+     *
+     * @param lowMemory whether low-memory mode should be used
+     */
+    public void setLowMemory( boolean lowMemory )
+    {
+        this.lowMemory = lowMemory;
+        decompressor.setLowMemory( lowMemory );
+    }
+
+    /**
+     * Set arena of off-heap working memory IBWT vectors of blocks are taken from, or {@code null} to use the heap,
+     * which is the default. The arena takes effect for blocks which were not decompressed yet. It's not closed when
+     * this stream is closed, so it can be shared by several streams.
+     * <p>
+     * IBWT vectors take 4 bytes per byte of block, and each block in flight needs one, so keeping them off the heap
+     * makes garbage collection independent of the number of blocks and streams decompressed at the same time. Vectors
+     * of blocks being decompressed when the stream is closed before its end stay allocated in the arena until the arena
+     * is closed. See {@link WorkingMemory} for details.
+     *
+     * @param memory arena of working memory
+     */
+    public void setWorkingMemory( WorkingMemory memory )
+    {
+        this.memory = memory;
+        decompressor.setWorkingMemory( memory );
     }
 
     @Override
@@ -72,85 +294,325 @@ public class LBzip2InputStream
     {
         if ( done )
             return -1;
+        if ( executor != null )
+            return readParallel( buf, off, len );
 
         int origLen = len;
         while ( len > 0 )
         {
-            if ( emit )
+            int n = decompressor.decompress( buf, off, len );
+            off += n;
+            len -= n;
+
+            if ( decompressor.finished() )
             {
-                int[] buf_sz = new int[1];
-                buf_sz[0] = len;
-                if ( decoder.emit( buf, off, buf_sz ) == OK )
-                {
-                    emit = false;
-                    if ( hd.crc != decoder.crc )
-                        throw new StreamFormatException( "Invalid block CRC" );
-                }
-                len = buf_sz[0];
-                off += origLen - len;
+                finish();
+                return origLen > len ? origLen - len : -1;
             }
-            else
+
+            if ( n == 0 && decompressor.needsInput() )
+            {
+                int r = is.read( in_buf );
+                if ( r < 0 )
+                    decompressor.finish();
+                else
+                    decompressor.setInput( in_buf, 0, r );
+            }
+        }
+
+        return origLen;
+    }
+
+    /**
+     * Read decompressed data into given buffer. Heap buffers are filled directly. Decompressed blocks are copied
+     * directly into other buffers too, except when blocks are decompressed in the reading thread, in which case small
+     * chunks are used.
+     * 
+     * @param dst buffer to read data into
+     * @return number of bytes read, or {@code -1} if end of stream was reached
+     */
+    public int read( ByteBuffer dst )
+        throws IOException
+    {
+        if ( dst.hasArray() )
+        {
+            int n = read( dst.array(), dst.arrayOffset() + dst.position(), dst.remaining() );
+            if ( n > 0 )
+                dst.position( dst.position() + n );
+            return n;
+        }
+
+        if ( done )
+            return -1;
+
+        int total = 0;
+        while ( dst.hasRemaining() )
+        {
+            int n;
+
+            if ( executor != null )
             {
-                int[] garbage = new int[1];
-
-                if ( parser == null )
-                {
-                    int bs100k;
-                    if ( is.read() != 0x42 || is.read() != 0x5A || is.read() != 0x68
-                        || ( bs100k = ( ( is.read() - 0x31 ) & 0xFF ) + 1 ) > 9 )
-                        throw new StreamFormatException( "Not a bz2 file" );
-                    parser = new Parser( bs100k );
-                }
-
-                Status s;
-                while ( ( s = parser.parse( hd, bitStream, garbage ) ) == MORE )
-                {
-                    readMoreInput();
-                }
-                if ( s == FINISH )
-                {
+                DecompressedBlock block = currentBlock();
+                n = block != null ? block.read( dst ) : -1;
+                if ( n < 0 )
                     finish();
-                    return origLen > len ? origLen - len : -1;
-                }
-                assert s == OK;
-
-                retriever.setMbs( hd.bs100k * 100000 );
-                while ( ( s = retriever.retr( decoder, bitStream ) ) == MORE )
-                {
-                    readMoreInput();
-                }
-                assert s == OK;
-
-                decoder.decode();
-                emit = true;
             }
+            else
+            {
+                if ( chunk == null )
+                    chunk = new byte[AbstractDataSink.CHUNK_SIZE];
+                n = read( chunk, 0, Math.min( chunk.length, dst.remaining() ) );
+                if ( n > 0 )
+                    dst.put( chunk, 0, n );
+            }
+
+            if ( n < 0 )
+                return total > 0 ? total : -1;
+            total += n;
+        }
+
+        return total;
+    }
+
+    public boolean isOpen()
+    {
+        return !closed;
+    }
+
+    private int readParallel( byte[] buf, int off, int len )
+        throws IOException
+    {
+        int origLen = len;
+        while ( len > 0 )
+        {
+            DecompressedBlock block = currentBlock();
+            if ( block == null )
+            {
+                finish();
+                return origLen > len ? origLen - len : -1;
+            }
+
+            int n = block.read( buf, off, len );
+            off += n;
+            len -= n;
         }
 
         return origLen;
     }
 
-    private void readMoreInput()
+    /**
+     * Get decompressed block which is being read, waiting for the next block to be decompressed if the current one
+     * was read fully.
+     * 
+     * @return decompressed block, or {@code null} if there are no more blocks
+     */
+    private DecompressedBlock currentBlock()
+        throws IOException
+    {
+        if ( current != null && current.block.isEmpty() )
+        {
+            recycle( current );
+            current = null;
+        }
+
+        while ( current == null )
+        {
+            submitAhead();
+            if ( inFlight.isEmpty() )
+                return null;
+
+            Job job = inFlight.poll();
+            if ( previous != null && previous.contains( job.input ) )
+            {
+                skip( job );
+                continue;
+            }
+
+            await( job );
+            previous = job.input;
+            current = job;
+        }
+
+        return current.block;
+    }
+
+    private void recycle( Job job )
+    {
+        job.input = null;
+        freeJobs.add( job );
+    }
+
+    /**
+     * Find blocks and submit them for decompression, until the limit of blocks in flight is reached. Blocks which
+     * turned out to be parts of the block read most recently are dropped without being submitted.
+     */
+    private void submitAhead()
+        throws IOException
+    {
+        while ( inFlight.size() + ( current != null ? 1 : 0 ) < maxInFlight )
+        {
+            UndecompressedBlock input = pending.isEmpty() ? nextBlock() : pending.poll();
+            if ( input == null )
+                break;
+
+            if ( previous != null && previous.contains( input ) )
+                continue;
+
+            submit( input );
+        }
+    }
+
+    private void submit( UndecompressedBlock input )
+    {
+        Job job = freeJobs.isEmpty() ? new Job() : freeJobs.poll();
+        job.setDecoder( lowMemory, memory );
+        job.input = input;
+        job.future = new FutureTask<DecompressedBlock>( job );
+        inFlight.add( job );
+        executor.execute( job.future );
+    }
+
+    /**
+     * Find the next block in compressed input.
+     * 
+     * @return the next block, or {@code null} if end of input was reached
+     */
+    private UndecompressedBlock nextBlock()
+        throws IOException
+    {
+        for ( ;; )
+        {
+            if ( decomposer.isFull() )
+                return decomposer.extractBlock();
+            if ( eos )
+                return null;
+
+            if ( inOff < inLen )
+            {
+                inOff += decomposer.write( in_buf, inOff, inLen - inOff );
+                continue;
+            }
+
+            int r = is.read( in_buf );
+            if ( r < 0 )
+            {
+                eos = true;
+                decomposer.finish();
+            }
+            else
+            {
+                inOff = 0;
+                inLen = r;
+            }
+        }
+    }
+
+    private void await( Job job )
+        throws IOException
+    {
+        try
+        {
+            job.future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            job.future.cancel( false );
+            throw new InterruptedIOException( "Interrupted while waiting for block decompression" );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof TruncatedBlockException )
+                retry( job );
+            else if ( e.getCause() instanceof IOException )
+                throw (IOException) e.getCause();
+            else
+            {
+                IOException ioe = new IOException( "Block decompression failed" );
+                ioe.initCause( e.getCause() );
+                throw ioe;
+            }
+        }
+    }
+
+    /**
+     * Continue decompression of block which continues past blocks found so far in the reading thread, finding more
+     * blocks until the end of the block is reached. Retrieval resumes where it stopped. Blocks found are not submitted
+     * until the block is finished, as most of them turn out to be parts of it.
+     */
+    private void retry( Job job )
         throws IOException
     {
-        int r = is.read( in_buf );
-        if ( r < 0 )
-            bitStream.eof = true;
-        else
+        for ( ;; )
         {
-            bitStream.off = 0;
-            bitStream.len = r;
+            try
+            {
+                job.input.decompress( job.retriever, job.decoder, job.block );
+                return;
+            }
+            catch ( TruncatedBlockException e )
+            {
+                UndecompressedBlock input = nextBlock();
+                if ( input == null )
+                    throw e;
+                pending.add( input );
+            }
         }
     }
 
+    /**
+     * Wait for decompression of a block which is a part of the preceding block to finish, ignoring its outcome.
+     */
+    private void skip( Job job )
+        throws IOException
+    {
+        try
+        {
+            job.future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            job.future.cancel( false );
+            throw new InterruptedIOException( "Interrupted while waiting for block decompression" );
+        }
+        catch ( ExecutionException e )
+        {
+        }
+
+        recycle( job );
+    }
+
     private void finish()
     {
         done = true;
+
+        /* Tasks being cancelled may still be running, so their decoders can't be reused. */
+        for ( Job job : inFlight )
+            job.future.cancel( false );
+        inFlight.clear();
+        pending.clear();
+
+        if ( current != null )
+            recycle( current );
+        current = null;
+        previous = null;
+        for ( Job job : freeJobs )
+        {
+            Retriever.POOL.release( job.retriever );
+            job.releaseDecoder();
+        }
+        freeJobs.clear();
+
+        decompressor.end();
+
+        if ( ownExecutor != null )
+            ownExecutor.shutdown();
     }
 
     @Override
     public void close()
         throws IOException
     {
+        closed = true;
         finish();
     }
 }
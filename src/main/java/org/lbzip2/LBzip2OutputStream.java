@@ -17,16 +17,42 @@ package org.lbzip2;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Compressing output stream filter.
+ * <p>
+ * By default blocks are compressed in the calling thread. When an {@link Executor} or a number of threads is given,
+ * full blocks are compressed by the executor, up to a given number of blocks at a time, while the calling thread keeps
+ * filling new blocks. Compressed blocks are always written in the same order as they were filled, so the output does
+ * not depend on the number of threads used. Suffix sorting of each block is split into several tasks too, which cuts
+ * latency of streams consisting of just a few blocks.
+ * <p>
+ * Optionally a {@link BlockIndex} of compressed stream can be written to a separate output stream when compression is
+ * finished. Block positions and sizes are recorded as blocks are added to the stream, so producing the index doesn't
+ * require compressed data to be scanned again.
+ * <p>
+ * The stream is also a {@link WritableByteChannel}, so that data can be compressed directly from byte buffers.
+ * 
  * @author Mikolaj Izdebski
  */
 public class LBzip2OutputStream
     extends OutputStream
+    implements WritableByteChannel
 {
     private final Logger logger = LoggerFactory.getLogger( LBzip2OutputStream.class );
 
@@ -34,20 +60,241 @@ public class LBzip2OutputStream
 
     private final StreamComposer composer;
 
-    private final UncompressedBlock block;
+    private final int maxBlockSize;
+
+    private UncompressedBlock block;
 
     private final byte[] buf1 = new byte[1];
 
     private final byte[] buf = new byte[4096];
 
+    /**
+     * Executor used to compress blocks, or {@code null} if blocks are compressed in the calling thread.
+     */
+    private final Executor executor;
+
+    /**
+     * Executor service created by this stream, which needs to be shut down when the stream is closed.
+     */
+    private final ExecutorService ownExecutor;
+
+    /**
+     * Maximal number of blocks submitted to the executor, but not yet added to the composer.
+     */
+    private final int maxInFlight;
+
+    /**
+     * Number of tasks each block is sorted with. Sorting tasks run on the same executor as block compression, so that
+     * a stream with fewer blocks than threads still keeps all threads busy.
+     */
+    private final int sortParallelism;
+
+    /**
+     * Blocks being compressed, in the order in which they were filled.
+     */
+    private final LinkedList<Job> inFlight = new LinkedList<Job>();
+
+    /**
+     * Blocks which were already compressed and can be filled again.
+     */
+    private final LinkedList<UncompressedBlock> freeBlocks = new LinkedList<UncompressedBlock>();
+
+    /**
+     * Index of compressed blocks, or {@code null} if no index is being built.
+     */
+    private BlockIndex index;
+
+    /**
+     * Output stream to write index to, or {@code null}.
+     */
+    private OutputStream indexStream;
+
+    private Effort effort = Effort.DEFAULT;
+
+    /**
+     * Trees of the most recently compressed or submitted block, or {@code null} if warm start is disabled.
+     */
+    private EntropyCoder.Seed seed;
+
+    private WorkingMemory memory;
+
+    private boolean finished;
+
+    private boolean closed;
+
+    /**
+     * Block compression task. Remembers the block it compresses, so that it can be reused once compression is done.
+     */
+    private static final class Job
+        extends FutureTask<CompressedBlock>
+    {
+        final UncompressedBlock block;
+
+        Job( final UncompressedBlock block, final Executor executor, final int sortParallelism )
+        {
+            super( new Callable<CompressedBlock>()
+            {
+                public CompressedBlock call()
+                {
+                    return block.compress( executor, sortParallelism );
+                }
+            } );
+
+            this.block = block;
+        }
+    }
+
+    /**
+     * Create a compressing stream which compresses blocks in the calling thread.
+     * 
+     * @param os underlying output stream
+     * @param maxBlockSize maximal block size
+     * @throws IOException
+     */
     public LBzip2OutputStream( OutputStream os, int maxBlockSize )
         throws IOException
+    {
+        this( os, maxBlockSize, null, false, 0 );
+    }
+
+    /**
+     * Create a compressing stream which compresses blocks using given number of worker threads. The threads are
+     * stopped when the stream is closed.
+     * 
+     * @param os underlying output stream
+     * @param maxBlockSize maximal block size
+     * @param numThreads number of worker threads
+     * @throws IOException
+     */
+    public LBzip2OutputStream( OutputStream os, int maxBlockSize, int numThreads )
+        throws IOException
+    {
+        this( os, maxBlockSize, newExecutor( numThreads ), true, 2 * numThreads );
+    }
+
+    /**
+     * Create a compressing stream which compresses blocks using given executor. The executor is not shut down when
+     * the stream is closed.
+     * 
+     * @param os underlying output stream
+     * @param maxBlockSize maximal block size
+     * @param executor executor used to compress blocks
+     * @param maxInFlight maximal number of blocks being compressed at the same time; each block is sorted using up to
+     *            half that many tasks
+     * @throws IOException
+     */
+    public LBzip2OutputStream( OutputStream os, int maxBlockSize, Executor executor, int maxInFlight )
+        throws IOException
+    {
+        this( os, maxBlockSize, executor, false, maxInFlight );
+
+        if ( executor == null )
+            throw new NullPointerException();
+        if ( maxInFlight < 1 )
+            throw new IllegalArgumentException( "At least one block must be allowed to be compressed at a time" );
+    }
+
+    private LBzip2OutputStream( OutputStream os, int maxBlockSize, Executor executor, boolean ownsExecutor,
+                                int maxInFlight )
+        throws IOException
     {
         this.os = os;
+        this.maxBlockSize = maxBlockSize;
+        this.executor = executor;
+        this.ownExecutor = ownsExecutor ? (ExecutorService) executor : null;
+        this.maxInFlight = maxInFlight;
+        sortParallelism = Math.max( 1, maxInFlight / 2 );
         composer = new StreamComposer( maxBlockSize );
         block = new UncompressedBlock( maxBlockSize );
     }
 
+    private static ExecutorService newExecutor( int numThreads )
+    {
+        if ( numThreads < 1 )
+            throw new IllegalArgumentException( "Number of threads must be positive" );
+
+        return Executors.newFixedThreadPool( numThreads, new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "lbzip2-compressor" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    /**
+     * Build random-access index of compressed stream and write it to given output stream when this stream is
+     * finished. The index output stream is not closed. Indexing must be enabled before any data is written to this
+     * stream.
+     * 
+     * @param indexStream output stream to write index to
+     */
+    public void setIndexOutput( OutputStream indexStream )
+    {
+        if ( !block.isEmpty() || !inFlight.isEmpty() )
+            throw new IllegalStateException( "Indexing must be enabled before any data is written" );
+
+        this.indexStream = indexStream;
+        index = new BlockIndex();
+        composer.setIndex( index );
+    }
+
+    /**
+     * Set effort blocks are compressed with. Effort can be changed at any time, and it applies to the block being
+     * filled and to all subsequent blocks.
+     * 
+     * @param effort compression effort
+     */
+    public void setEffort( Effort effort )
+    {
+        block.setEffort( effort );
+        this.effort = effort;
+    }
+
+    /**
+     * Enable or disable warm start of entropy coding. When enabled, prefix trees of each block are built starting with
+     * trees of the previous block, instead of starting from scratch. This saves CPU time when statistics of subsequent
+     * blocks are similar, as is often the case with homogeneous data, such as logs. Warm start is disabled by default.
+     * <p>
+     * Output doesn't depend on the number of threads. When blocks are compressed in parallel, entropy coding of each
+     * block waits for trees of the previous block, while sorting of blocks still proceeds in parallel.
+     * 
+     * @param warmStart whether warm start should be enabled
+     */
+    public void setWarmStart( boolean warmStart )
+    {
+        seed = warmStart ? new EntropyCoder.Seed() : null;
+    }
+
+    /**
+     * Set arena of off-heap working memory blocks are encoded with, or {@code null} to use the heap, which is the
+     * default. The arena applies to the block being filled and to all subsequent blocks. It's not closed when this
+     * stream is closed, so it can be shared by several streams.
+     * <p>
+     * Streams given an arena keep MTF values of blocks being encoded off the heap, so that garbage collection doesn't
+     * depend on the number of streams compressed at the same time. See {@link WorkingMemory} for details.
+     *
+     * @param memory arena of working memory
+     */
+    public void setWorkingMemory( WorkingMemory memory )
+    {
+        block.memory = memory;
+        this.memory = memory;
+    }
+
+    /**
+     * Get random-access index of compressed stream, or {@code null} if indexing was not enabled. The index is complete
+     * only after this stream is finished.
+     * 
+     * @return index of compressed stream
+     */
+    public BlockIndex getIndex()
+    {
+        return index;
+    }
+
     @Override
     public void write( int b )
         throws IOException
@@ -74,15 +321,142 @@ public class LBzip2OutputStream
         }
     }
 
+    /**
+     * Compress data remaining in given buffer. Heap buffers are read in place, without copying them first.
+     * 
+     * @param src buffer holding data to compress
+     * @return number of bytes compressed, which is always the number of bytes remaining in the buffer
+     */
+    public int write( ByteBuffer src )
+        throws IOException
+    {
+        int total = 0;
+
+        while ( src.hasRemaining() )
+        {
+            total += block.write( src );
+
+            if ( block.isFull() )
+            {
+                logger.trace( "Block full, forcing transmission" );
+                transmit();
+            }
+        }
+
+        return total;
+    }
+
+    public boolean isOpen()
+    {
+        return !closed;
+    }
+
     private void transmit()
         throws IOException
     {
         if ( !block.isEmpty() )
         {
-            logger.trace( "Adding block" );
-            composer.addBlock( block.compress() );
+            if ( executor == null )
+            {
+                logger.trace( "Adding block" );
+                chainSeed( null );
+                composer.addBlock( block.compress() );
+            }
+            else
+            {
+                submit();
+            }
+        }
+
+        retire( false );
+        drain();
+    }
+
+    /**
+     * Hand the current block over to the executor and continue with an empty block.
+     */
+    private void submit()
+        throws IOException
+    {
+        while ( inFlight.size() >= maxInFlight )
+            retireOne();
+
+        logger.trace( "Submitting block" );
+        Job job = new Job( block, executor, sortParallelism );
+        chainSeed( job );
+        inFlight.add( job );
+        executor.execute( job );
+
+        block = freeBlocks.isEmpty() ? new UncompressedBlock( maxBlockSize ) : freeBlocks.poll();
+        block.setEffort( effort );
+        block.memory = memory;
+    }
+
+    /**
+     * Make the current block start entropy coding with trees of the previous block, and save its own trees for the next
+     * block.
+     * 
+     * @param job task which compresses the current block, or {@code null} if it's compressed by the calling thread
+     */
+    private void chainSeed( Job job )
+    {
+        block.seed = seed;
+        block.nextSeed = null;
+
+        if ( seed != null )
+        {
+            seed = new EntropyCoder.Seed();
+            if ( job != null )
+                seed.expect( job );
+            block.nextSeed = seed;
+        }
+    }
+
+    /**
+     * Add the oldest block being compressed to the composer, waiting for its compression to finish if needed.
+     */
+    private void retireOne()
+        throws IOException
+    {
+        Job job = inFlight.poll();
+        CompressedBlock compressedBlock;
+
+        try
+        {
+            compressedBlock = job.get();
+        }
+        catch ( InterruptedException e )
+        {
+            job.cancel( false );
+            throw new InterruptedIOException( "Interrupted while waiting for block compression" );
+        }
+        catch ( ExecutionException e )
+        {
+            IOException ioe = new IOException( "Block compression failed" );
+            ioe.initCause( e.getCause() );
+            throw ioe;
         }
 
+        logger.trace( "Adding block" );
+        composer.addBlock( compressedBlock );
+        freeBlocks.add( job.block );
+    }
+
+    /**
+     * Add blocks which were compressed to the composer, preserving their order.
+     * 
+     * @param wait whether to wait for all blocks to be compressed
+     */
+    private void retire( boolean wait )
+        throws IOException
+    {
+        while ( !inFlight.isEmpty() && ( wait || inFlight.peek().isDone() ) )
+            retireOne();
+    }
+
+    private void drain()
+        throws IOException
+    {
         while ( !composer.isEmpty() )
         {
             logger.trace( "Emptying composer" );
@@ -95,24 +469,47 @@ public class LBzip2OutputStream
         throws IOException
     {
         transmit();
+        retire( true );
+        drain();
         os.flush();
     }
 
     public void finish()
         throws IOException
     {
+        if ( finished )
+            return;
+
         logger.trace( "Closing stream" );
         transmit();
+        retire( true );
         composer.finish();
-        transmit();
+        drain();
+        finished = true;
+
+        if ( indexStream != null )
+        {
+            logger.trace( "Writing index" );
+            index.write( indexStream );
+        }
     }
 
     @Override
     public void close()
         throws IOException
     {
-        finish();
-        os.close();
+        closed = true;
+
+        try
+        {
+            finish();
+            os.close();
+        }
+        finally
+        {
+            if ( ownExecutor != null )
+                ownExecutor.shutdown();
+        }
     }
 
     public static void main( String[] args )
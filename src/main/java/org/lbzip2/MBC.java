@@ -61,7 +61,13 @@ public class MBC
         err( "Data error" );
     }
 
-    private final Decoder ds = new Decoder();
+    private Decoder ds;
+
+    private final Retriever r = new Retriever();
+
+    private final byte[] buf = new byte[4096];
+
+    private final int[] len = new int[1];
 
     private int get( int n )
         throws IOException
@@ -90,9 +96,6 @@ public class MBC
 
         ds.decode();
 
-        byte[] buf = new byte[4096];
-        int[] len = new int[1];
-
         Status status;
         do
         {
@@ -107,6 +110,22 @@ public class MBC
     /* Parse stream and bock headers, decompress any blocks found. */
     public void expand()
         throws StreamFormatException, IOException
+    {
+        ds = Decoder.POOL.acquire();
+
+        try
+        {
+            expandStreams();
+        }
+        finally
+        {
+            Decoder.POOL.release( ds );
+            ds = null;
+        }
+    }
+
+    private void expandStreams()
+        throws StreamFormatException, IOException
     {
         int t, c;
         if ( get( 24 ) != 0x425A68 )
@@ -116,7 +135,7 @@ public class MBC
             bad();
         do
         {
-            Retriever r = new Retriever();
+            r.reset();
             r.setMbs( 100000 * ( t + 1 ) );
             c = 0;
             while ( ( t = get( 16 ) ) == 0x3141 )
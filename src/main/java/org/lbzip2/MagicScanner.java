@@ -0,0 +1,256 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+/**
+ * Finds block header and end-of-stream magic numbers in compressed data.
+ * <p>
+ * Both magic numbers are 48 bits long and they are not aligned to byte boundary, so they can start at any of 8 bit
+ * positions within a byte. Scanning is done with bit-parallel Shift-And algorithm, processing one byte of input at a
+ * time. For each of 8 possible bit alignments the magic number spans 6 or 7 consecutive bytes (the first and the last
+ * of them only partially), giving 8 patterns of at most 7 bytes each. All 8 patterns are matched simultaneously, each
+ * of them using one 8-bit lane of a 64-bit state word. Lane {@code k} corresponds to magic numbers starting at bit
+ * {@code k} of a byte (bit 0 being the most significant one), and bit {@code j} of that lane is set iff the last
+ * {@code j+1} bytes of input matched the first {@code j+1} bytes of the pattern.
+ * <p>
+ * Processing a single byte takes just a few arithmetic operations and two table lookups, independently of how many
+ * candidate matches are currently being tracked.
+ *
+ * @author Mikolaj Izdebski
+ */
+final class MagicScanner
+{
+    /**
+     * Block header magic number.
+     */
+    static final long BLOCK_MAGIC = 0x314159265359L;
+
+    /**
+     * End of stream magic number.
+     */
+    static final long EOS_MAGIC = 0x177245385090L;
+
+    /**
+     * Bits which are set in the initial state of each lane.
+     */
+    private static final long INITIAL = 0x0101010101010101L;
+
+    /**
+     * Bits indicating complete match. Byte-aligned pattern (lane 0) is 6 bytes long, all other patterns are 7 bytes
+     * long.
+     */
+    private static final long ACCEPT = 0x4040404040404020L;
+
+    private static final long[] BLOCK_TABLE = makeTable( BLOCK_MAGIC );
+
+    private static final long[] EOS_TABLE = makeTable( EOS_MAGIC );
+
+    /**
+     * Bit set of 16-bit values which can be formed by two fully covered consecutive bytes of any magic number.
+     */
+    private static final long[] PAIRS = new long[1024];
+
+    static
+    {
+        addPairs( BLOCK_MAGIC );
+        addPairs( EOS_MAGIC );
+    }
+
+    /**
+     * Shift-And state for block header magic.
+     */
+    private long blockState;
+
+    /**
+     * Shift-And state for end of stream magic.
+     */
+    private long eosState;
+
+    /**
+     * Whether the last call to {@link #scan} found a match.
+     */
+    boolean found;
+
+    /**
+     * Whether the last match found was end of stream magic (as opposed to block header magic).
+     */
+    boolean eos;
+
+    /**
+     * Distance in bits from the beginning of the last match found to the end of the last byte scanned.
+     */
+    int lag;
+
+    /**
+     * Build Shift-And table for given magic number.
+     * <p>
+     * Bit {@code 8*k+j} of {@code table[b]} is set iff byte {@code b} can be {@code j}-th byte of magic number
+     * starting at bit {@code k}.
+     */
+    private static long[] makeTable( long magic )
+    {
+        long[] table = new long[256];
+
+        for ( int k = 0; k < 8; k++ )
+        {
+            /* Place the magic in a 56-bit window, starting at bit k. */
+            long pattern = magic << ( 8 - k );
+            long mask = 0xFFFFFFFFFFFFL << ( 8 - k );
+            int length = k == 0 ? 6 : 7;
+
+            for ( int j = 0; j < length; j++ )
+            {
+                int p = (int) ( pattern >>> ( 48 - 8 * j ) ) & 0xFF;
+                int m = (int) ( mask >>> ( 48 - 8 * j ) ) & 0xFF;
+
+                for ( int b = 0; b < 256; b++ )
+                    if ( ( b & m ) == p )
+                        table[b] |= 1L << ( 8 * k + j );
+            }
+        }
+
+        return table;
+    }
+
+    /**
+     * Add pairs of bytes which are fully covered by given magic number to {@code PAIRS} table.
+     */
+    private static void addPairs( long magic )
+    {
+        for ( int k = 0; k < 8; k++ )
+        {
+            long pattern = magic << ( 8 - k );
+
+            /* Bytes 1-5 are fully covered by the magic for any k. */
+            for ( int j = 1; j < 5; j++ )
+            {
+                int pair = (int) ( pattern >>> ( 40 - 8 * j ) ) & 0xFFFF;
+                PAIRS[pair >> 6] |= 1L << pair;
+            }
+        }
+    }
+
+    /**
+     * Forget any partial matches.
+     */
+    void reset()
+    {
+        blockState = 0;
+        eosState = 0;
+    }
+
+    /**
+     * Scan given bytes until a magic number is found.
+     * <p>
+     * If a match is found then {@link #found} is set, {@link #eos} tells which magic number was found and
+     * {@link #lag} tells where the match begins, relative to the end of the last byte scanned. Partial matches are
+     * remembered between calls, so that magic numbers split across buffers are found too.
+     * <p>
+     * Most of the input is not examined byte by byte. Wherever a magic number starts, the 5 bytes following its first
+     * byte are fully covered by the magic, so every occurrence contains a pair of fully covered bytes starting at
+     * an index divisible by 4 (relative to the sampling grid). Only pairs at such indices are looked up in
+     * {@code PAIRS} table, and exact matching is done only around pairs which may be a part of magic number. Exact
+     * matching is also done at the very beginning and the end of given range, so that matches crossing buffer
+     * boundaries are not missed.
+     *
+     * @param buf buffer to scan
+     * @param off index of the first byte to scan
+     * @param end index past the last byte to scan
+     * @return index past the last byte scanned, which is either the last byte of a match or {@code end} if no match
+     *         was found
+     */
+    int scan( byte[] buf, int off, int end )
+    {
+        final long[] P = PAIRS;
+
+        found = false;
+        exact = off;
+
+        /* Finish partial matches carried over from previous call. */
+        if ( exact( buf, off, Math.min( off + 8, end ) ) )
+            return exact;
+
+        int p = off + 2;
+        while ( p + 1 < end )
+        {
+            int pair = ( ( buf[p] & 0xFF ) << 8 ) | ( buf[p + 1] & 0xFF );
+
+            if ( ( P[pair >> 6] & ( 1L << pair ) ) != 0 && exact( buf, p - 6, Math.min( p + 6, end ) ) )
+                return exact;
+
+            p += 4;
+        }
+
+        /* Track partial matches which may be finished by the next call. */
+        exact( buf, end - 7, end );
+        return exact;
+    }
+
+    /**
+     * Index up to which all bytes were exactly matched.
+     */
+    private int exact;
+
+    /**
+     * Exactly match bytes in given range. Bytes which were already matched are not matched again. If there is a gap
+     * between bytes already matched and the given range, then matching is restarted from scratch.
+     *
+     * @return {@code true} iff a match was found
+     */
+    private boolean exact( byte[] buf, int from, int to )
+    {
+        final long[] BT = BLOCK_TABLE;
+        final long[] ET = EOS_TABLE;
+        long bs = blockState;
+        long es = eosState;
+
+        if ( from > exact )
+        {
+            bs = 0;
+            es = 0;
+        }
+        else
+        {
+            from = exact;
+        }
+
+        while ( from < to )
+        {
+            int b = buf[from++] & 0xFF;
+            bs = ( ( bs << 1 ) | INITIAL ) & BT[b];
+            es = ( ( es << 1 ) | INITIAL ) & ET[b];
+
+            if ( ( ( bs | es ) & ACCEPT ) != 0 )
+            {
+                found = true;
+                long match = bs & ACCEPT;
+                eos = match == 0;
+                if ( eos )
+                    match = es & ACCEPT;
+
+                /* Lane 0 holds the latest possible start, other lanes are ordered by ascending start. */
+                int lane = Long.numberOfTrailingZeros( match & ~0xFFL ) >> 3;
+                lag = lane < 8 ? 56 - lane : 48;
+                break;
+            }
+        }
+
+        blockState = bs;
+        eosState = es;
+        exact = Math.max( exact, from );
+        return found;
+    }
+}
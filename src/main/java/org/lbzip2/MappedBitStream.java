@@ -0,0 +1,114 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.lbzip2.Status.FINISH;
+import static org.lbzip2.Status.OK;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bit stream reading a range of bytes directly from memory-mapped segments of a file.
+ * <p>
+ * Files larger than 2 GB can't be mapped as a single buffer, so they are mapped as a sequence of segments of equal
+ * size (except the last one). The range being read can span any number of segments; reading simply moves on to the
+ * next segment when the current one is exhausted. Bytes are read with absolute gets, so many streams can read the same
+ * segments at the same time.
+ *
+ * @author Mikolaj Izdebski
+ */
+final class MappedBitStream
+    extends BitStream
+{
+    private final ByteBuffer[] segments;
+
+    private final long segmentSize;
+
+    /**
+     * Index of segment being read.
+     */
+    private int index;
+
+    private ByteBuffer segment;
+
+    /**
+     * Absolute position past the last byte to be read.
+     */
+    private long end;
+
+    MappedBitStream( ByteBuffer[] segments, long segmentSize )
+    {
+        this.segments = segments;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Start reading bytes in range {@code [from,to)} of the file, discarding any bits in the bit buffer.
+     */
+    void reset( long from, long to )
+    {
+        buff = 0;
+        live = 0;
+        eof = true;
+        end = to;
+        index = (int) ( from / segmentSize );
+        load( (int) ( from % segmentSize ) );
+    }
+
+    /**
+     * Get absolute bit position of the next bit to be read.
+     */
+    long tell()
+    {
+        return ( index * segmentSize + off ) * 8 - live;
+    }
+
+    private void load( int offset )
+    {
+        segment = segments[index];
+        off = offset;
+        len = (int) Math.min( segment.limit(), end - index * segmentSize );
+    }
+
+    @Override
+    Status need( int n )
+    {
+        if ( live < n && len - off >= 8 )
+        {
+            buff |= segment.getLong( off ) >>> live;
+            int k = ( 63 - live ) >> 3;
+            off += k;
+            live += k << 3;
+        }
+
+        while ( live < n )
+        {
+            if ( off == len )
+            {
+                if ( len < segment.limit() || index + 1 == segments.length )
+                    break;
+                index++;
+                load( 0 );
+                continue;
+            }
+
+            live += 8;
+            buff |= ( segment.get( off++ ) & 0xFFL ) << ( 64 - live );
+        }
+
+        return live >= n ? OK : FINISH;
+    }
+}
@@ -0,0 +1,452 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.lbzip2.Status.OK;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Parallel decompressor of <em>bz2</em> files of any size, which reads compressed data from memory-mapped file.
+ * <p>
+ * The file is mapped in segments, which are scanned for block boundaries with {@link MagicScanner} in the calling
+ * thread, a small chunk at a time. Blocks found are decompressed by the executor, each of them read by
+ * {@link MappedBitStream} directly from the mapped segments, so compressed blocks are never copied to heap buffers.
+ * Blocks crossing segment boundaries need no special treatment. Decompressed blocks are written to the output channel
+ * in order, by the calling thread. The number of blocks being decompressed at the same time is bounded.
+ * <p>
+ * Like {@link StreamDecomposer}, decompressor supports concatenated streams and trailing garbage after the last
+ * stream, it verifies stream headers and combined stream CRCs, and it copes with magic numbers appearing inside
+ * compressed blocks by chance. Blocks are read past the magic following them until their end is reached, and blocks
+ * starting inside preceding blocks are skipped.
+ *
+ * @author Mikolaj Izdebski
+ */
+public class MappedLBzip2Decompressor
+{
+    /**
+     * Default size of mapped segments.
+     */
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final int CHUNK_SIZE = 65536;
+
+    private final FileChannel channel;
+
+    private final long segmentSize;
+
+    private final Executor executor;
+
+    private final int numThreads;
+
+    private final int maxInFlight;
+
+    private ByteBuffer[] segments;
+
+    private long size;
+
+    /**
+     * Blocks being decompressed, in file order.
+     */
+    private final LinkedList<Job> inFlight = new LinkedList<Job>();
+
+    /**
+     * Decoders and block buffers which can be used to decompress more blocks.
+     */
+    private final LinkedList<Job> freeJobs = new LinkedList<Job>();
+
+    /**
+     * Buffer for compressed data being scanned for block boundaries.
+     */
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    private final MagicScanner scanner = new MagicScanner();
+
+    private long written;
+
+    /**
+     * Bit position past the end of the block written most recently.
+     */
+    private long stop;
+
+    /**
+     * Block decompression task, together with retriever, decoder, bit stream and buffer it uses.
+     */
+    private final class Job
+        implements Callable<DecompressedBlock>
+    {
+        final Retriever retriever = Retriever.POOL.acquire();
+
+        final Decoder decoder = Decoder.POOL.acquire();
+
+        final MappedBitStream bs = new MappedBitStream( segments, segmentSize );
+
+        final DecompressedBlock block = new DecompressedBlock();
+
+        long start;
+
+        /**
+         * Bit position past the end of block, known after the block is decompressed.
+         */
+        long stop;
+
+        int bs100k;
+
+        int crc;
+
+        FutureTask<DecompressedBlock> future;
+
+        public DecompressedBlock call()
+            throws IOException
+        {
+            /* A magic number may appear inside block data by chance, so the block is read until its end is reached. */
+            bs.reset( start / 8, size );
+
+            /* Skip block header magic and block CRC. */
+            int skip = (int) ( start % 8 ) + 48 + 32;
+            bs.need( skip - 40 );
+            bs.dump( skip - 40 );
+            bs.need( 40 );
+            bs.dump( 40 );
+
+            retriever.reset();
+            retriever.setMbs( bs100k * 100000 );
+            if ( retriever.retr( decoder, bs ) != OK )
+                throw new StreamFormatException( "ERR_EOF" );
+            stop = bs.tell();
+
+            block.decode( decoder, crc );
+            return block;
+        }
+    }
+
+    /**
+     * Create a decompressor reading given file, which decompresses blocks using one thread per available processor.
+     *
+     * @param channel channel to read compressed data from
+     */
+    public MappedLBzip2Decompressor( FileChannel channel )
+    {
+        this( channel, Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Create a decompressor reading given file, which decompresses blocks using given number of worker threads. The
+     * threads are stopped when decompression is finished.
+     *
+     * @param channel channel to read compressed data from
+     * @param numThreads number of worker threads
+     */
+    public MappedLBzip2Decompressor( FileChannel channel, int numThreads )
+    {
+        this( channel, SEGMENT_SIZE, null, numThreads, 2 * numThreads );
+
+        if ( numThreads < 1 )
+            throw new IllegalArgumentException( "Number of threads must be positive" );
+    }
+
+    /**
+     * Create a decompressor reading given file, which decompresses blocks using given executor. The executor is not
+     * shut down when decompression is finished.
+     *
+     * @param channel channel to read compressed data from
+     * @param executor executor used to decompress blocks
+     * @param maxInFlight maximal number of blocks decompressed at the same time
+     */
+    public MappedLBzip2Decompressor( FileChannel channel, Executor executor, int maxInFlight )
+    {
+        this( channel, SEGMENT_SIZE, executor, 0, maxInFlight );
+
+        if ( executor == null )
+            throw new NullPointerException();
+        if ( maxInFlight < 1 )
+            throw new IllegalArgumentException( "At least one block must be allowed to be decompressed at a time" );
+    }
+
+    MappedLBzip2Decompressor( FileChannel channel, long segmentSize, Executor executor, int numThreads,
+                              int maxInFlight )
+    {
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+        this.executor = executor;
+        this.numThreads = numThreads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Decompress the whole file, writing decompressed data to given channel. Neither channel is closed.
+     *
+     * @param out channel to write decompressed data to
+     * @return number of bytes written
+     * @throws IOException if I/O error occurs or compressed data is invalid
+     */
+    public long decompress( WritableByteChannel out )
+        throws IOException
+    {
+        size = channel.size();
+        segments = new ByteBuffer[(int) ( ( size + segmentSize - 1 ) / segmentSize )];
+        for ( int i = 0; i < segments.length; i++ )
+        {
+            long position = i * segmentSize;
+            long length = Math.min( segmentSize, size - position );
+            segments[i] = channel.map( FileChannel.MapMode.READ_ONLY, position, length );
+        }
+
+        ExecutorService ownExecutor = executor == null ? LBzip2InputStream.newExecutor( numThreads ) : null;
+        written = 0;
+        stop = 0;
+
+        try
+        {
+            scan( ownExecutor != null ? ownExecutor : executor, out );
+
+            while ( !inFlight.isEmpty() )
+                writeBlock( out );
+
+            return written;
+        }
+        finally
+        {
+            /* Tasks being cancelled may still be running, so their decoders can't be reused. */
+            for ( Job job : inFlight )
+                job.future.cancel( false );
+            inFlight.clear();
+
+            for ( Job job : freeJobs )
+            {
+                Retriever.POOL.release( job.retriever );
+                Decoder.POOL.release( job.decoder );
+            }
+            freeJobs.clear();
+
+            if ( ownExecutor != null )
+                ownExecutor.shutdown();
+            segments = null;
+        }
+    }
+
+    /**
+     * Find all blocks of all streams and submit them for decompression.
+     */
+    private void scan( Executor executor, WritableByteChannel out )
+        throws IOException
+    {
+        long position = 0;
+        boolean first = true;
+
+        while ( size - position >= 4 && getBits( position * 8, 24 ) == 0x425A68 )
+        {
+            int bs100k = getByte( position + 3 ) - 0x30;
+            if ( bs100k < 1 || bs100k > 9 )
+                break;
+
+            long mark = scanStream( position + 4, bs100k, executor, out );
+            position = ( mark + 48 + 32 + 7 ) / 8;
+            first = false;
+        }
+
+        if ( first )
+            throw new StreamFormatException( "Not a bz2 file" );
+    }
+
+    /**
+     * Find blocks of a single stream, starting at given position, and submit them for decompression.
+     *
+     * @return bit position of end-of-stream magic
+     */
+    private long scanStream( long position, int bs100k, Executor executor, WritableByteChannel out )
+        throws IOException
+    {
+        long mark = position * 8;
+        boolean inBlock = false;
+        boolean crcError = false;
+        StreamCrc crcs = new StreamCrc();
+
+        scanner.reset();
+        int off = 0;
+        int len = 0;
+
+        for ( ;; )
+        {
+            if ( off == len )
+            {
+                position += len;
+                if ( position == size )
+                    throw new StreamFormatException( crcError ? "ERR_STRMCRC" : "ERR_EOF" );
+                len = fill( position );
+                off = 0;
+            }
+
+            off = scanner.scan( chunk, off, len );
+            if ( !scanner.found )
+                continue;
+
+            long magic = ( position + off ) * 8 - scanner.lag;
+            if ( !inBlock && magic != mark )
+                throw new StreamFormatException( "ERR_HEADER" );
+
+            /* Magic overlapping block header can only be a part of block data. */
+            if ( inBlock && magic - mark < 48 + 32 + 1 + 24 )
+                continue;
+
+            if ( scanner.eos )
+            {
+                if ( magic + 48 + 32 > size * 8 )
+                    throw new StreamFormatException( "ERR_EOF" );
+                int storedCrc = (int) getBits( magic + 48, 32 );
+
+                if ( !inBlock )
+                {
+                    if ( storedCrc != 0 )
+                        throw new StreamFormatException( "ERR_STRMCRC" );
+                    return magic;
+                }
+
+                int crc = (int) getBits( mark + 48, 32 );
+                crcs.add( crc );
+                if ( crcs.matches( storedCrc ) )
+                {
+                    submit( mark, bs100k, crc, executor, out );
+                    return magic;
+                }
+                crcs.removeLast();
+
+                /*
+                 * Either the magic is a part of block data, or stream CRC is corrupted. Continue the block, and report
+                 * the error at the end of file unless end of stream is found later.
+                 */
+                crcError = true;
+                continue;
+            }
+
+            if ( inBlock )
+            {
+                int crc = (int) getBits( mark + 48, 32 );
+                crcs.add( crc );
+                submit( mark, bs100k, crc, executor, out );
+            }
+
+            inBlock = true;
+            mark = magic;
+        }
+    }
+
+    /**
+     * Submit block starting at given bit position for decompression, first writing out the oldest block if the limit
+     * of blocks in flight is reached.
+     */
+    private void submit( long start, int bs100k, int crc, Executor executor, WritableByteChannel out )
+        throws IOException
+    {
+        if ( inFlight.size() >= maxInFlight )
+            writeBlock( out );
+
+        Job job = freeJobs.isEmpty() ? new Job() : freeJobs.poll();
+        job.start = start;
+        job.bs100k = bs100k;
+        job.crc = crc;
+        job.future = new FutureTask<DecompressedBlock>( job );
+        inFlight.add( job );
+        executor.execute( job.future );
+    }
+
+    /**
+     * Wait for the oldest block in flight to be decompressed and write it out.
+     */
+    private void writeBlock( WritableByteChannel out )
+        throws IOException
+    {
+        Job job = inFlight.peek();
+
+        /* Block starting inside the preceding block is a part of it, so its outcome is ignored. */
+        boolean skip = job.start < stop;
+
+        try
+        {
+            job.future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            throw new InterruptedIOException( "Interrupted while waiting for block decompression" );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( !skip )
+            {
+                if ( e.getCause() instanceof IOException )
+                    throw (IOException) e.getCause();
+                IOException ioe = new IOException( "Block decompression failed" );
+                ioe.initCause( e.getCause() );
+                throw ioe;
+            }
+        }
+
+        inFlight.poll();
+        freeJobs.add( job );
+        if ( !skip )
+        {
+            stop = job.stop;
+            written += job.block.write( out );
+        }
+    }
+
+    /**
+     * Copy compressed data starting at given position to the scanning buffer.
+     *
+     * @return number of bytes copied
+     */
+    private int fill( long position )
+    {
+        int n = (int) Math.min( chunk.length, size - position );
+
+        for ( int off = 0; off < n; )
+        {
+            ByteBuffer segment = segments[(int) ( ( position + off ) / segmentSize )].duplicate();
+            segment.position( (int) ( ( position + off ) % segmentSize ) );
+            int k = Math.min( n - off, segment.remaining() );
+            segment.get( chunk, off, k );
+            off += k;
+        }
+
+        return n;
+    }
+
+    private int getByte( long position )
+    {
+        return segments[(int) ( position / segmentSize )].get( (int) ( position % segmentSize ) ) & 0xFF;
+    }
+
+    /**
+     * Get bits at given absolute bit position in the file. Bits past the end of file are zero.
+     */
+    private long getBits( long position, int n )
+    {
+        long word = 0;
+        for ( int k = 0; k < 8 && position / 8 + k < size; k++ )
+            word |= (long) getByte( position / 8 + k ) << ( 56 - 8 * k );
+        return ( word << ( position % 8 ) ) >>> ( 64 - n );
+    }
+}
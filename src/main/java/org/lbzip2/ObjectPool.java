@@ -0,0 +1,92 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe pool of objects which are expensive to create, such as decoders owning large arrays.
+ * <p>
+ * Pooled objects are only softly reachable, so they can be reclaimed under memory pressure. The number of objects kept
+ * in the pool is bounded; objects released to a full pool are simply dropped.
+ *
+ * @author Mikolaj Izdebski
+ */
+abstract class ObjectPool<T>
+{
+    private final ConcurrentLinkedQueue<SoftReference<T>> free = new ConcurrentLinkedQueue<SoftReference<T>>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final int capacity;
+
+    /**
+     * Create a pool holding at most two objects per available processor.
+     */
+    ObjectPool()
+    {
+        this( 2 * Runtime.getRuntime().availableProcessors() );
+    }
+
+    ObjectPool( int capacity )
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Create a new object, when there are no free objects in the pool.
+     */
+    protected abstract T create();
+
+    /**
+     * Bring given object to its initial state before it is returned to the pool.
+     */
+    protected void recycle( T object )
+    {
+    }
+
+    /**
+     * Get an object from the pool, or create a new one if the pool is empty.
+     */
+    T acquire()
+    {
+        SoftReference<T> ref;
+        while ( ( ref = free.poll() ) != null )
+        {
+            size.decrementAndGet();
+            T object = ref.get();
+            if ( object != null )
+                return object;
+        }
+
+        return create();
+    }
+
+    /**
+     * Return an object to the pool. The object must not be used by the caller afterwards.
+     */
+    void release( T object )
+    {
+        recycle( object );
+
+        if ( size.incrementAndGet() <= capacity )
+            free.add( new SoftReference<T>( object ) );
+        else
+            size.decrementAndGet();
+    }
+}
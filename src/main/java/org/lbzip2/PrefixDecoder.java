@@ -64,11 +64,15 @@ class PrefixDecoder
     /**
      * Decoding start point.
      * <p>
-     * {@code k = start[c] & 0x1F} is code length. If {@code k <= HUFF_START_WIDTH} then {@code s = start[c] >> 5} is
-     * the immediate symbol value. If {@code k > HUFF_START_WIDTH} then {@code s} is undefined, but code starting with
-     * {@code c} is guaranteed to be at least {@code k} bits long.
+     * {@code k = start[c] & 0x1F} is code length. If {@code k <= HUFF_START_WIDTH} then
+     * {@code s = start[c] >> 5 & 0x1FF} is the immediate symbol value. If {@code k > HUFF_START_WIDTH} then {@code s}
+     * is undefined, but code starting with {@code c} is guaranteed to be at least {@code k} bits long.
+     * <p>
+     * If the bits of {@code c} following the first code hold another complete code then the entry describes a pair of
+     * symbols: {@code k2 = start[c] >> 14 & 0x1F} is length of the second code and {@code start[c] >>> 19} is the
+     * second symbol. Otherwise {@code k2} is zero.
      */
-    final short[] start;
+    final int[] start;
 
     /**
      * Base codes.
@@ -103,7 +107,7 @@ class PrefixDecoder
 
     public PrefixDecoder()
     {
-        this.start = new short[1 << HUFF_START_WIDTH];
+        this.start = new int[1 << HUFF_START_WIDTH];
         this.base = new long[MAX_CODE_LENGTH + 2];
         this.count = new int[MAX_CODE_LENGTH + 1];
         this.perm = new short[MAX_ALPHA_SIZE];
@@ -142,7 +146,7 @@ class PrefixDecoder
         int[] C; /* code length count; C[0] is a sentinel */
         long[] B; /* left-justified base */
         short[] P; /* symbols sorted by code length */
-        short[] S; /* lookup table */
+        int[] S; /* lookup table */
 
         int k; /* current code length */
         int s; /* current symbol */
@@ -232,7 +236,7 @@ class PrefixDecoder
         {
             for ( s = C[k - 1]; s < C[k]; s++ )
             {
-                short x = (short) ( ( P[s] << 5 ) | k );
+                int x = ( P[s] << 5 ) | k;
                 v = code;
                 code += inc;
                 while ( v < code )
@@ -248,12 +252,27 @@ class PrefixDecoder
         {
             while ( uge( sofar, B[k + 1] ) )
                 k++;
-            S[code] = (short) k;
+            S[code] = k;
             code++;
             sofar += 1L << ( 64 - HUFF_START_WIDTH );
         }
         assert ( sofar == 0 );
 
+        /*
+         * Pair complete start entries with codes which fit in the remaining bits. Short codes are the most frequent ones,
+         * and runs of zeros in particular are coded as sequences of RUN-A and RUN-B symbols, so pairs are common.
+         */
+        for ( code = 0; code < ( 1 << HUFF_START_WIDTH ); code++ )
+        {
+            k = S[code] & 0x1F;
+            if ( k < HUFF_START_WIDTH )
+            {
+                int y = S[( code << k ) & ( ( 1 << HUFF_START_WIDTH ) - 1 )];
+                if ( k + ( y & 0x1F ) <= HUFF_START_WIDTH )
+                    S[code] |= ( y & 0x3FFF ) << 14;
+            }
+        }
+
         /*
          * Restore cumulative counts as they were destroyed by the sorting phase. The sentinel wasn't touched, so there
          * is no need to restore it.
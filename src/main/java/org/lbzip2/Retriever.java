@@ -24,7 +24,6 @@ import static org.lbzip2.Status.MORE;
 import static org.lbzip2.Status.OK;
 import static org.lbzip2.Unsigned.uge;
 
-import java.io.IOException;
 import java.util.Arrays;
 
 /**
@@ -70,12 +69,40 @@ class Retriever
         S_PREFIX,
     };
 
+    /**
+     * Pool of retrievers, shared by all decompressors.
+     */
+    static final ObjectPool<Retriever> POOL = new ObjectPool<Retriever>()
+    {
+        @Override
+        protected Retriever create()
+        {
+            return new Retriever();
+        }
+
+        @Override
+        protected void recycle( Retriever retriever )
+        {
+            retriever.reset();
+        }
+    };
+
     public Retriever()
     {
         for ( int t = 0; t < 6; t++ )
             tree[t] = new PrefixDecoder();
     }
 
+    /**
+     * Abandon block being retrieved, if any, so that retriever can be used to retrieve a new block.
+     */
+    void reset()
+    {
+        m_state = State.S_INIT;
+        m_need = 0;
+        m_pending = -1;
+    }
+
     public void setMbs( int mbs )
     {
         if ( mbs <= 0 || mbs > 900000 )
@@ -152,9 +179,14 @@ class Retriever
 
     private int m_need;
 
+    /**
+     * Second symbol of a pair decoded with a single lookup, which wasn't processed yet, or {@code -1}.
+     */
+    private int m_pending = -1;
+
     /* Decode a single prefix code. */
     private short get_sym( BitStream bs )
-        throws StreamFormatException, IOException
+        throws StreamFormatException
     {
         int x = pd.start[bs.peek( HUFF_START_WIDTH )];
         int k = x & 0x1F;
@@ -163,7 +195,7 @@ class Retriever
         if ( k <= HUFF_START_WIDTH )
         {
             /* Use look-up table in average case. */
-            s = (short) ( x >> 5 );
+            s = (short) ( x >> 5 & 0x1FF );
         }
         else
         {
@@ -181,36 +213,19 @@ class Retriever
 
     /* Retrieve block. */
     Status retr( Decoder ds, BitStream bs )
-        throws StreamFormatException, IOException
+        throws StreamFormatException
     {
-        int off = bs.off;
-        final int len = bs.len;
-        final byte[] buf = bs.ptr;
-
-        while ( bs.live < m_need && off < len )
-        {
-            bs.live += 8;
-            bs.buff += ( buf[off++] & 0xFFL ) << ( 64 - bs.live );
-        }
-        if ( bs.live < m_need )
-        {
-            bs.off = off;
+        if ( bs.need( m_need ) != OK )
             return MORE;
-        }
 
         switch ( m_state )
         {
             default:
+                ds.reserve( mbs );
                 m_need = 1 + 24 + 16 + 16;
-                while ( bs.live < m_need && off < len )
-                {
-                    bs.live += 8;
-                    bs.buff += ( buf[off++] & 0xFFL ) << ( 64 - bs.live );
-                }
-                if ( bs.live < m_need )
+                if ( bs.need( m_need ) != OK )
                 {
                     m_state = State.S_BWT_IDX;
-                    bs.off = off;
                     return MORE;
                 }
             case S_BWT_IDX:
@@ -238,15 +253,9 @@ class Retriever
                     m_i += 16;
                     m_r *= 2;
                     m_need = 3 + 15 + 6;
-                    while ( bs.live < m_need && off < len )
-                    {
-                        bs.live += 8;
-                        bs.buff += ( buf[off++] & 0xFFL ) << ( 64 - bs.live );
-                    }
-                    if ( bs.live < m_need )
+                    if ( bs.need( m_need ) != OK )
                     {
                         m_state = State.S_BITMAP;
-                        bs.off = off;
                         return MORE;
                     }
                 }
@@ -272,15 +281,9 @@ class Retriever
                         throw new StreamFormatException( "invalid selector" );
                     m_g++;
                     m_need = 5 + 1 + 1;
-                    while ( bs.live < m_need && off < len )
-                    {
-                        bs.live += 8;
-                        bs.buff += ( buf[off++] & 0xFFL ) << ( 64 - bs.live );
-                    }
-                    if ( bs.live < m_need )
+                    if ( bs.need( m_need ) != OK )
                     {
                         m_state = State.S_SELECTOR_MTF;
-                        bs.off = off;
                         return MORE;
                     }
                 }
@@ -290,6 +293,8 @@ class Retriever
                 m_t = 0;
                 m_i = 0;
                 m_len[0] = (byte) bs.take( 5 );
+                if ( m_len[0] < 1 || m_len[0] > 20 )
+                    throw new StreamFormatException( "invalid code length" );
             case S_DELTA_TAG:
                 for ( ;; )
                 {
@@ -309,18 +314,14 @@ class Retriever
                                 break;
                             m_i = 0;
                             m_len[0] = (byte) bs.take( 5 );
+                            if ( m_len[0] < 1 || m_len[0] > 20 )
+                                throw new StreamFormatException( "invalid code length" );
                         }
                     }
                     m_need = 1 + MAX_CODE_LENGTH;
-                    while ( bs.live < m_need && off < len )
-                    {
-                        bs.live += 8;
-                        bs.buff += ( buf[off++] & 0xFFL ) << ( 64 - bs.live );
-                    }
-                    if ( bs.live < m_need )
+                    if ( bs.need( m_need ) != OK )
                     {
                         m_state = State.S_DELTA_TAG;
-                        bs.off = off;
                         return MORE;
                     }
                 }
@@ -333,6 +334,7 @@ class Retriever
                 for ( int i = 0; i < 6; i++ )
                     m_mtf[i] = i;
                 m_i = 0;
+                m_pending = -1;
             case S_PREFIX:
                 for ( ;; )
                 {
@@ -350,7 +352,37 @@ class Retriever
                             throw new StreamFormatException( pd.error );
                         m_i = 50;
                     }
-                    int s = get_sym( bs );
+
+                    /*
+                     * Take the second symbol of a pair if there is one. Otherwise look up the next code, together with
+                     * the code following it, as long as the pair doesn't end the group or the block.
+                     */
+                    int s = m_pending;
+                    if ( s >= 0 )
+                    {
+                        m_pending = -1;
+                    }
+                    else
+                    {
+                        int x = pd.start[bs.peek( HUFF_START_WIDTH )];
+                        int k = x & 0x1F;
+                        if ( k <= HUFF_START_WIDTH )
+                        {
+                            s = x >> 5 & 0x1FF;
+                            int k2 = x >> 14 & 0x1F;
+                            if ( k2 != 0 && s != EOB && m_i >= 2 )
+                            {
+                                m_pending = x >>> 19;
+                                k += k2;
+                            }
+                            bs.dump( k );
+                        }
+                        else
+                        {
+                            s = get_sym( bs );
+                        }
+                    }
+
                     if ( s >= RUN_A )
                     {
                         m_r += 1 << ( m_h + s - RUN_A );
@@ -364,12 +396,24 @@ class Retriever
                         if ( ds.block_size + r > mbs )
                             throw new StreamFormatException( "block overflow" );
                         ds.ftab[m_c] += r;
-                        while ( r-- != 0 )
-                            ds.tt[ds.block_size++] = m_c;
+                        if ( ds.small )
+                        {
+                            while ( r-- != 0 )
+                                ds.ll16[ds.block_size++] = (char) m_c;
+                        }
+                        else if ( ds.direct_tt != null )
+                        {
+                            while ( r-- != 0 )
+                                ds.direct_tt.put( ds.block_size++, m_c );
+                        }
+                        else
+                        {
+                            while ( r-- != 0 )
+                                ds.tt[ds.block_size++] = m_c;
+                        }
                         if ( s == EOB )
                         {
                             m_state = State.S_INIT;
-                            bs.off = off;
                             return OK;
                         }
                         m_c = mtf.mtf_one( s );
@@ -377,16 +421,12 @@ class Retriever
                         m_r = 1;
                     }
                     m_i--;
+                    if ( m_pending >= 0 )
+                        continue;
                     m_need = MAX_CODE_LENGTH;
-                    while ( bs.live < m_need && off < len )
-                    {
-                        bs.live += 8;
-                        bs.buff += ( buf[off++] & 0xFFL ) << ( 64 - bs.live );
-                    }
-                    if ( bs.live < m_need )
+                    if ( bs.need( m_need ) != OK )
                     {
                         m_state = State.S_PREFIX;
-                        bs.off = off;
                         return MORE;
                     }
                 }
@@ -0,0 +1,326 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.lbzip2.Constants.CHARACTER_BIAS;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A linear-time BWT implementation based on SA-IS (suffix array induced sorting) algorithm.
+ * <p>
+ * Algorithm is described in paper <em>Two Efficient Algorithms for Linear Time Suffix Array Construction</em> by Ge
+ * Nong, Sen Zhang and Wai Hong Chan. Time and space used don't depend on contents of the block, which makes this
+ * implementation suitable for highly repetitive blocks, on which other algorithms degrade.
+ * <p>
+ * SA-IS sorts suffixes, while BWT needs cyclic rotations to be sorted. Any block is a rotation of a power of some
+ * Lyndon word &ndash; its lexicographically least rotation. Rotations of a Lyndon word are ordered the same way as its
+ * suffixes, so it's enough to sort suffixes of the Lyndon word and repeat each character of the resulting transform
+ * as many times as the Lyndon word is repeated in the block.
+ * 
+ * @author Mikolaj Izdebski
+ */
+class SaisBWT
+    implements BWT
+{
+    private final Logger logger = LoggerFactory.getLogger( SaisBWT.class );
+
+    /**
+     * Working copy of the Lyndon word, with characters shifted by one to make room for sentinel. Grown on demand and
+     * reused between transforms.
+     */
+    private int[] text = new int[0];
+
+    /**
+     * Suffix array used when the array given to {@link #transform} is too small to hold suffix array of the Lyndon word
+     * together with the sentinel.
+     */
+    private int[] spare = new int[0];
+
+    /**
+     * Suffix types of strings sorted at each recursion level of {@link #sais}. Grown on demand and reused between
+     * transforms.
+     */
+    private boolean[][] types = new boolean[0][];
+
+    /**
+     * Bucket boundaries, shared by all recursion levels, as each level recomputes them after recursing.
+     */
+    private int[] buckets = new int[0];
+
+    public int transform( byte[] B, int[] P, int n )
+    {
+        logger.trace( "Running SA-IS BWT (block size is {})", n );
+
+        int shift = leastRotation( B, n );
+        int period = lyndonPeriod( B, n, shift );
+        int repeat = n / period;
+        logger.trace( "  Least rotation starts at {}, period is {}", shift, period );
+
+        if ( text.length < period + 1 )
+            text = new int[period + 1];
+        final int[] s = text;
+        for ( int i = 0; i < period; i++ )
+            s[i] = char_at( B, shift + i, n ) + 1;
+        s[period] = 0;
+
+        /* Block is not periodic and there is no room for sentinel in P. */
+        int[] SA = P;
+        if ( SA.length < period + 1 )
+        {
+            if ( spare.length < period + 1 )
+                spare = new int[period + 1];
+            SA = spare;
+        }
+
+        logger.trace( "  Sorting suffixes..." );
+        sais( s, 0, SA, period + 1, 256, 0 );
+
+        /* Suffix array of the Lyndon word, without the sentinel, is moved out of the way of the transform. */
+        System.arraycopy( SA, 1, s, 0, period );
+
+        logger.trace( "  Constructing BWT..." );
+        int first = ( n - shift ) % period;
+        int idx = -1;
+        for ( int i = 0, j = 0; i < period; i++ )
+        {
+            int q = s[i];
+            if ( q == first )
+                idx = j;
+
+            int c = char_at( B, shift + q + period - 1, n );
+            for ( int k = 0; k < repeat; k++ )
+                P[j++] = c;
+        }
+
+        assert idx >= 0;
+        return idx;
+    }
+
+    /**
+     * Get unsigned value of character at given position of the block, wrapping around the end of the block.
+     */
+    private static int char_at( byte[] B, int i, int n )
+    {
+        return B[i % n] + CHARACTER_BIAS;
+    }
+
+    /**
+     * Find the lexicographically least rotation of the block using Duval's Lyndon factorization of the block repeated
+     * twice.
+     */
+    private static int leastRotation( byte[] B, int n )
+    {
+        int i = 0, least = 0;
+
+        while ( i < n )
+        {
+            least = i;
+            int j = i + 1, k = i;
+            while ( j < 2 * n && char_at( B, k, n ) <= char_at( B, j, n ) )
+            {
+                if ( char_at( B, k, n ) < char_at( B, j, n ) )
+                    k = i;
+                else
+                    k++;
+                j++;
+            }
+            while ( i <= k )
+                i += j - k;
+        }
+
+        return least;
+    }
+
+    /**
+     * Find length of the Lyndon word the least rotation is a power of, which is the length of the first factor of its
+     * Lyndon factorization.
+     */
+    private static int lyndonPeriod( byte[] B, int n, int shift )
+    {
+        int j = 1, k = 0;
+        while ( j < n && char_at( B, shift + k, n ) <= char_at( B, shift + j, n ) )
+        {
+            if ( char_at( B, shift + k, n ) < char_at( B, shift + j, n ) )
+                k = 0;
+            else
+                k++;
+            j++;
+        }
+
+        assert n % ( j - k ) == 0;
+        return j - k;
+    }
+
+    /**
+     * Compute bucket boundaries &ndash; heads or tails &ndash; of characters in given string.
+     */
+    private static void getBuckets( int[] s, int so, int[] bkt, int n, int K, boolean end )
+    {
+        int i, sum = 0;
+
+        for ( i = 0; i <= K; i++ )
+            bkt[i] = 0;
+        for ( i = 0; i < n; i++ )
+            bkt[s[so + i]]++;
+        for ( i = 0; i <= K; i++ )
+        {
+            sum += bkt[i];
+            bkt[i] = end ? sum : sum - bkt[i];
+        }
+    }
+
+    private static boolean isLMS( boolean[] t, int i )
+    {
+        return i > 0 && t[i] && !t[i - 1];
+    }
+
+    /**
+     * Induce positions of L-type suffixes from sorted LMS suffixes.
+     */
+    private static void induceSAl( boolean[] t, int[] SA, int[] s, int so, int[] bkt, int n, int K )
+    {
+        getBuckets( s, so, bkt, n, K, false );
+        for ( int i = 0; i < n; i++ )
+        {
+            int j = SA[i] - 1;
+            if ( j >= 0 && !t[j] )
+                SA[bkt[s[so + j]]++] = j;
+        }
+    }
+
+    /**
+     * Induce positions of S-type suffixes from sorted L-type suffixes.
+     */
+    private static void induceSAs( boolean[] t, int[] SA, int[] s, int so, int[] bkt, int n, int K )
+    {
+        getBuckets( s, so, bkt, n, K, true );
+        for ( int i = n - 1; i >= 0; i-- )
+        {
+            int j = SA[i] - 1;
+            if ( j >= 0 && t[j] )
+                SA[--bkt[s[so + j]]] = j;
+        }
+    }
+
+    /**
+     * Construct suffix array of string s[so..so+n-1] over alphabet {0..K} and store it in SA[0..n-1]. The last
+     * character of the string must be a unique sentinel equal to zero. The string may reside in the same array as the
+     * suffix array, provided that it doesn't overlap SA[0..n/2].
+     */
+    private void sais( int[] s, int so, int[] SA, int n, int K, int depth )
+    {
+        int i, j;
+
+        if ( types.length <= depth )
+        {
+            boolean[][] newTypes = new boolean[depth + 1][];
+            System.arraycopy( types, 0, newTypes, 0, types.length );
+            types = newTypes;
+        }
+        if ( types[depth] == null || types[depth].length < n )
+            types[depth] = new boolean[n];
+        if ( buckets.length < K + 1 )
+            buckets = new int[K + 1];
+
+        final boolean[] t = types[depth];
+        final int[] bkt = buckets;
+
+        /* Classify suffixes as S-type (true) or L-type (false). */
+        t[n - 2] = false;
+        t[n - 1] = true;
+        for ( i = n - 3; i >= 0; i-- )
+            t[i] = s[so + i] < s[so + i + 1] || ( s[so + i] == s[so + i + 1] && t[i + 1] );
+
+        /* Stage 1: reduce the problem by at least 1/2, sorting all LMS substrings. */
+        getBuckets( s, so, bkt, n, K, true );
+        for ( i = 0; i < n; i++ )
+            SA[i] = -1;
+        for ( i = 1; i < n; i++ )
+            if ( isLMS( t, i ) )
+                SA[--bkt[s[so + i]]] = i;
+        induceSAl( t, SA, s, so, bkt, n, K );
+        induceSAs( t, SA, s, so, bkt, n, K );
+
+        /* Compact all sorted LMS substrings into the first n1 items of SA. */
+        int n1 = 0;
+        for ( i = 0; i < n; i++ )
+            if ( isLMS( t, SA[i] ) )
+                SA[n1++] = SA[i];
+
+        /* Name LMS substrings. */
+        for ( i = n1; i < n; i++ )
+            SA[i] = -1;
+        int name = 0, prev = -1;
+        for ( i = 0; i < n1; i++ )
+        {
+            int pos = SA[i];
+            boolean diff = false;
+            for ( int d = 0; d < n; d++ )
+            {
+                if ( prev == -1 || s[so + pos + d] != s[so + prev + d] || t[pos + d] != t[prev + d] )
+                {
+                    diff = true;
+                    break;
+                }
+                else if ( d > 0 && ( isLMS( t, pos + d ) || isLMS( t, prev + d ) ) )
+                {
+                    break;
+                }
+            }
+            if ( diff )
+            {
+                name++;
+                prev = pos;
+            }
+            SA[n1 + ( pos >> 1 )] = name - 1;
+        }
+        for ( i = n - 1, j = n - 1; i >= n1; i-- )
+            if ( SA[i] >= 0 )
+                SA[j--] = SA[i];
+
+        /* Stage 2: solve the reduced problem, recursing if names are not yet unique. */
+        final int s1 = n - n1;
+        if ( name < n1 )
+        {
+            sais( SA, s1, SA, n1, name - 1, depth + 1 );
+        }
+        else
+        {
+            for ( i = 0; i < n1; i++ )
+                SA[SA[s1 + i]] = i;
+        }
+
+        /* Stage 3: induce the result for the original problem. */
+        getBuckets( s, so, bkt, n, K, true );
+        for ( i = 1, j = 0; i < n; i++ )
+            if ( isLMS( t, i ) )
+                SA[s1 + j++] = i;
+        for ( i = 0; i < n1; i++ )
+            SA[i] = SA[s1 + SA[i]];
+        for ( i = n1; i < n; i++ )
+            SA[i] = -1;
+        for ( i = n1 - 1; i >= 0; i-- )
+        {
+            j = SA[i];
+            SA[i] = -1;
+            SA[--bkt[s[so + j]]] = j;
+        }
+        induceSAl( t, SA, s, so, bkt, n, K );
+        induceSAs( t, SA, s, so, bkt, n, K );
+    }
+}
@@ -0,0 +1,193 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channel providing random access to decompressed contents of an indexed <em>bz2</em> file.
+ * <p>
+ * Only blocks covering requested range of decompressed data are read and decompressed, with the help of
+ * {@link BlockIndex}. The most recently decompressed block is cached, so that sequential reads don't cause the same
+ * block to be decompressed more than once.
+ * <p>
+ * The interface mimics {@code SeekableByteChannel}, except that the channel is read-only.
+ *
+ * @author Mikolaj Izdebski
+ */
+public class SeekableLBzip2Channel
+    implements ReadableByteChannel
+{
+    private final FileChannel channel;
+
+    private final BlockIndex index;
+
+    private Retriever retriever = Retriever.POOL.acquire();
+
+    private Decoder ds = Decoder.POOL.acquire();
+
+    private final DecompressedBlock block = new DecompressedBlock();
+
+    /**
+     * Index of block held in {@code block}, or {@code -1}.
+     */
+    private int current = -1;
+
+    private long position;
+
+    private boolean open = true;
+
+    /**
+     * Create a channel reading given compressed file.
+     *
+     * @param channel channel to read compressed data from
+     * @param index index of compressed data
+     */
+    public SeekableLBzip2Channel( FileChannel channel, BlockIndex index )
+    {
+        this.channel = channel;
+        this.index = index;
+    }
+
+    /**
+     * Get current position within decompressed data.
+     */
+    public long position()
+        throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    /**
+     * Set current position within decompressed data. Setting position past the end of data is legal, but subsequent
+     * reads signal end of file.
+     *
+     * @param newPosition new position
+     * @return this channel
+     */
+    public SeekableLBzip2Channel position( long newPosition )
+        throws IOException
+    {
+        ensureOpen();
+        if ( newPosition < 0 )
+            throw new IllegalArgumentException();
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * Get size of decompressed data.
+     */
+    public long size()
+        throws IOException
+    {
+        ensureOpen();
+        return index.getUncompressedSize();
+    }
+
+    public int read( ByteBuffer dst )
+        throws IOException
+    {
+        ensureOpen();
+
+        int i = index.findBlock( position );
+        if ( i < 0 )
+            return -1;
+
+        int total = 0;
+        while ( dst.hasRemaining() && i >= 0 )
+        {
+            load( i );
+            block.seek( (int) ( position - index.getBlockOffset( i ) ) );
+            int n = block.read( dst );
+            position += n;
+            total += n;
+
+            i = index.findBlock( position );
+        }
+
+        return total;
+    }
+
+    /**
+     * Read and decompress block with given index, unless it's already cached.
+     */
+    private void load( int i )
+        throws IOException
+    {
+        if ( i == current )
+            return;
+        current = -1;
+
+        long position = index.getBlockPosition( i );
+        long from = position / 8;
+        long end = index.getCompressedSize() * 8;
+        if ( i + 1 < index.getBlockCount() )
+            end = index.getBlockPosition( i + 1 );
+        long to = ( end + 7 ) / 8;
+
+        byte[] data = new byte[(int) ( to - from ) + UndecompressedBlock.PADDING];
+        ByteBuffer bb = ByteBuffer.wrap( data, 0, (int) ( to - from ) );
+        while ( bb.hasRemaining() )
+        {
+            if ( channel.read( bb, from + bb.position() ) < 0 )
+                throw new EOFException();
+        }
+
+        UndecompressedBlock ub =
+            new UndecompressedBlock( data, position, end, true, index.getBlockBs100k( i ), index.getBlockCrc( i ) );
+        ub.decompress( retriever, ds, block );
+        if ( block.size() != index.getBlockSize( i ) )
+            throw new StreamFormatException( "Index doesn't match compressed data" );
+
+        current = i;
+    }
+
+    private void ensureOpen()
+        throws ClosedChannelException
+    {
+        if ( !open )
+            throw new ClosedChannelException();
+    }
+
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    /**
+     * Close this channel together with underlying file channel. Decoder used by this channel is returned to the pool.
+     */
+    public void close()
+        throws IOException
+    {
+        if ( open )
+        {
+            open = false;
+            Retriever.POOL.release( retriever );
+            Decoder.POOL.release( ds );
+            retriever = null;
+            ds = null;
+        }
+        channel.close();
+    }
+}
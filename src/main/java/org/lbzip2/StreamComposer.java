@@ -27,6 +27,18 @@ public class StreamComposer
 
     private final int maxBlockSize;
 
+    private final int bs100k;
+
+    /**
+     * Number of bytes composed so far. Every block is padded to byte boundary, so block headers are always byte-aligned.
+     */
+    private long size = 4;
+
+    /**
+     * Index of composed blocks, or {@code null} if blocks are not indexed.
+     */
+    private BlockIndex index;
+
     public StreamComposer()
     {
         this( MAX_BLOCK_SIZE );
@@ -35,15 +47,30 @@ public class StreamComposer
     public StreamComposer( int maxBlockSize )
     {
         this.maxBlockSize = maxBlockSize;
+        bs100k = ( maxBlockSize + 100000 - 1 ) / 100000;
 
         byte[] buffer = new byte[4];
         buffer[0] = 0x42;
         buffer[1] = 0x5A;
         buffer[2] = 0x68;
-        buffer[3] = (byte) ( 0x30 + ( maxBlockSize + 100000 - 1 ) / 100000 );
+        buffer[3] = (byte) ( 0x30 + bs100k );
         addSource( new ByteArrayDataSource( buffer ) );
     }
 
+    /**
+     * Record all blocks composed from now on in given index. Positions of blocks are relative to the beginning of the
+     * stream, so the index is only usable for streams which are not preceded by any other data.
+     *
+     * @param index index to add blocks to
+     */
+    public void setIndex( BlockIndex index )
+    {
+        if ( size != 4 )
+            throw new IllegalStateException( "Blocks were already added to this stream" );
+
+        this.index = index;
+    }
+
     public void addBlock( CompressedBlock block )
     {
         if ( block.blockSize > maxBlockSize )
@@ -51,6 +78,10 @@ public class StreamComposer
 
         combinedCrc = ( ( combinedCrc << 1 ) ^ ( combinedCrc >>> 31 ) ^ block.crc ^ -1 );
 
+        if ( index != null )
+            index.add( size * 8, block.uncompressedSize, block.crc ^ -1, bs100k );
+        size += block.buffer.length;
+
         addSource( new ByteArrayDataSource( block.buffer ) );
     }
 
@@ -68,5 +99,9 @@ public class StreamComposer
         buffer[8] = (byte) ( combinedCrc >> 8 );
         buffer[9] = (byte) combinedCrc;
         addSource( new ByteArrayDataSource( buffer ) );
+
+        size += buffer.length;
+        if ( index != null )
+            index.setCompressedSize( size );
     }
 }
@@ -0,0 +1,83 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+/**
+ * CRCs of blocks found in a stream, which are verified against combined stream CRC stored after end-of-stream magic.
+ * <p>
+ * Blocks are found by scanning for magic numbers, which can also appear inside compressed blocks by chance. Block magic
+ * found that way makes a bogus block, so stream CRC is also accepted if it matches CRCs of all blocks but one.
+ *
+ * @author Mikolaj Izdebski
+ */
+final class StreamCrc
+{
+    private int[] crcs = new int[16];
+
+    private int size;
+
+    void add( int crc )
+    {
+        if ( size == crcs.length )
+        {
+            int[] newCrcs = new int[2 * size];
+            System.arraycopy( crcs, 0, newCrcs, 0, size );
+            crcs = newCrcs;
+        }
+
+        crcs[size++] = crc;
+    }
+
+    void removeLast()
+    {
+        size--;
+    }
+
+    void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Check whether given stream CRC matches CRCs of blocks found, possibly with one of them left out. The first block
+     * is never left out, as it starts right after stream header.
+     */
+    boolean matches( int storedCrc )
+    {
+        int combinedCrc = 0;
+        for ( int i = 0; i < size; i++ )
+            combinedCrc = Integer.rotateLeft( combinedCrc, 1 ) ^ crcs[i];
+        if ( combinedCrc == storedCrc )
+            return true;
+
+        /*
+         * Combined CRC is a XOR of block CRCs, each rotated by the number of blocks following it. Leaving block j out
+         * rotates blocks preceding it by one bit less and drops its own term.
+         */
+        int prefix = crcs[0];
+        for ( int j = 1; j < size; j++ )
+        {
+            int k = size - 1 - j;
+            int crc = combinedCrc ^ Integer.rotateLeft( prefix, k + 1 ) ^ Integer.rotateLeft( crcs[j], k )
+                ^ Integer.rotateLeft( prefix, k );
+            if ( crc == storedCrc )
+                return true;
+            prefix = Integer.rotateLeft( prefix, 1 ) ^ crcs[j];
+        }
+
+        return false;
+    }
+}
@@ -18,28 +18,349 @@ package org.lbzip2;
 import java.io.IOException;
 
 /**
+ * Splits compressed <em>bz2</em> data into independent blocks.
+ * <p>
+ * Block boundaries are found by scanning for block header and end-of-stream magic numbers, without decoding block
+ * contents. Each block found is extracted as {@link UndecompressedBlock}, which can be decompressed independently of
+ * other blocks. Stream headers, end-of-stream markers and combined stream CRCs are verified by the decomposer itself.
+ * Concatenated streams are supported, and so is trailing garbage after the last stream.
+ * <p>
+ * Magic numbers can also appear inside compressed blocks by chance, about once per 2<sup>48</sup> bits of compressed
+ * data. A block magic found that way cuts the block short, but the block continues into the following block when it
+ * is decompressed, and the following block must be skipped &ndash; see {@link UndecompressedBlock#contains}. Stream
+ * CRC is verified as if such block wasn't there. End-of-stream magic which is not followed by matching stream CRC is
+ * considered a part of block data.
+ *
  * @author Mikolaj Izdebski
  */
 public class StreamDecomposer
     extends AbstractDataSink
 {
+    private enum State
+    {
+        /**
+         * Reading 4-byte stream header.
+         */
+        HEADER,
+
+        /**
+         * Scanning for block boundaries.
+         */
+        BLOCKS,
+
+        /**
+         * Reading combined stream CRC following end-of-stream magic.
+         */
+        EOS_CRC,
+
+        /**
+         * Skipping garbage after the last stream.
+         */
+        GARBAGE,
+    }
+
+    private State state = State.HEADER;
+
+    private final MagicScanner scanner = new MagicScanner();
+
+    /**
+     * Whether no stream header has been seen yet.
+     */
+    private boolean first = true;
+
+    private final byte[] header = new byte[4];
+
+    private int headerSize;
+
+    private int bs100k;
+
+    /**
+     * CRCs of blocks found in current stream.
+     */
+    private final StreamCrc crcs = new StreamCrc();
+
+    /**
+     * The last block found in current stream, or {@code null}.
+     */
+    private UndecompressedBlock previous;
+
+    /**
+     * Whether end-of-stream magic with mismatching stream CRC was found in current stream.
+     */
+    private boolean crcError;
+
+    /**
+     * Buffered compressed data. {@code buffer[0]} is the byte at absolute position {@code base}.
+     */
+    private byte[] buffer = new byte[8192];
+
+    private long base;
+
+    private int size;
+
+    /**
+     * Absolute bit position of the expected first block magic, or the current block magic, depending on state.
+     */
+    private long mark;
+
+    /**
+     * Absolute bit position of end-of-stream magic whose stream CRC is being read.
+     */
+    private long eos;
+
+    /**
+     * Absolute bit position of the first magic found after end-of-stream magic, while reading stream CRC, or
+     * {@code -1}.
+     */
+    private long deferred;
+
+    /**
+     * Whether the deferred magic is end-of-stream magic.
+     */
+    private boolean deferredEos;
+
+    /**
+     * Whether at least one block magic was found in current stream.
+     */
+    private boolean inBlock;
+
+    /**
+     * Block found but not extracted yet, or {@code null}.
+     */
+    private UndecompressedBlock pending;
+
+    /**
+     * Check whether a complete block is waiting to be extracted. No more data is accepted until it is extracted.
+     */
     public boolean isFull()
-        throws IOException
     {
-        // TODO Auto-generated method stub
-        return false;
+        return pending != null;
+    }
+
+    /**
+     * Extract the block which was found.
+     *
+     * @return the block, or {@code null} if there is no block to extract
+     */
+    public UndecompressedBlock extractBlock()
+    {
+        UndecompressedBlock block = pending;
+        pending = null;
+        return block;
+    }
+
+    /**
+     * Signal that there is no more compressed data.
+     *
+     * @throws StreamFormatException if compressed data ends prematurely
+     */
+    public void finish()
+        throws StreamFormatException
+    {
+        if ( first )
+            throw new StreamFormatException( "Not a bz2 file" );
+        if ( state == State.BLOCKS || state == State.EOS_CRC )
+            throw new StreamFormatException( crcError ? "ERR_STRMCRC" : "ERR_EOF" );
     }
 
     public int write( byte[] buf, int off, int len )
         throws IOException
     {
-        // TODO Auto-generated method stub
-        return 0;
+        final int end = off + len;
+        final int start = off;
+
+        while ( off < end && pending == null )
+        {
+            switch ( state )
+            {
+                case HEADER:
+                    header[headerSize++] = buf[off++];
+                    if ( headerSize == 4 )
+                        parseHeader();
+                    break;
+
+                case BLOCKS:
+                {
+                    int next = scanner.scan( buf, off, end );
+                    append( buf, off, next - off );
+                    off = next;
+                    if ( scanner.found )
+                        foundMagic( ( base + size ) * 8 - scanner.lag, scanner.eos );
+                    break;
+                }
+
+                case EOS_CRC:
+                {
+                    /* Stream CRC is scanned too, in case end-of-stream magic turns out to be a part of block data. */
+                    int n = (int) Math.min( end - off, ( eos + 80 + 7 ) / 8 - ( base + size ) );
+                    int next = scanner.scan( buf, off, off + n );
+                    append( buf, off, next - off );
+                    off = next;
+                    if ( scanner.found && deferred < 0 )
+                    {
+                        deferred = ( base + size ) * 8 - scanner.lag;
+                        deferredEos = scanner.eos;
+                    }
+                    if ( ( base + size ) * 8 >= eos + 80 )
+                        endOfStream();
+                    break;
+                }
+
+                case GARBAGE:
+                    off = end;
+                    break;
+            }
+        }
+
+        return off - start;
+    }
+
+    private void parseHeader()
+        throws StreamFormatException
+    {
+        headerSize = 0;
+
+        if ( header[0] != 0x42 || header[1] != 0x5A || header[2] != 0x68 || header[3] < 0x31 || header[3] > 0x39 )
+        {
+            if ( first )
+                throw new StreamFormatException( "Not a bz2 file" );
+            state = State.GARBAGE;
+            return;
+        }
+
+        first = false;
+        bs100k = header[3] - 0x30;
+        crcs.clear();
+        previous = null;
+        crcError = false;
+        inBlock = false;
+        scanner.reset();
+
+        base += size + 4;
+        size = 0;
+        mark = base * 8;
+        state = State.BLOCKS;
     }
 
-    public UndecompressedBlock extractBlock()
+    private void foundMagic( long position, boolean eos )
+        throws StreamFormatException
+    {
+        if ( !inBlock && position != mark )
+            throw new StreamFormatException( "ERR_HEADER" );
+
+        /* Magic overlapping block header can only be a part of block data. */
+        if ( inBlock && position - mark < 48 + 32 + 1 + 24 )
+            return;
+
+        if ( eos )
+        {
+            this.eos = position;
+            deferred = -1;
+            state = State.EOS_CRC;
+            return;
+        }
+
+        if ( inBlock )
+            pending = makeBlock( position, false );
+
+        inBlock = true;
+        mark = position;
+        discard( mark / 8 );
+    }
+
+    private void endOfStream()
+        throws StreamFormatException
+    {
+        int storedCrc = (int) getBits( eos + 48, 32 );
+
+        if ( inBlock )
+        {
+            crcs.add( (int) getBits( mark + 48, 32 ) );
+            boolean valid = crcs.matches( storedCrc );
+            crcs.removeLast();
+
+            if ( !valid )
+            {
+                /*
+                 * Either the magic is a part of block data, or stream CRC is corrupted. Continue the block, and report
+                 * the error at the end of input unless end of stream is found later.
+                 */
+                crcError = true;
+                state = State.BLOCKS;
+                if ( deferred >= 0 )
+                    foundMagic( deferred, deferredEos );
+                return;
+            }
+
+            pending = makeBlock( eos, true );
+        }
+        else if ( storedCrc != 0 )
+        {
+            throw new StreamFormatException( "ERR_STRMCRC" );
+        }
+
+        discard( base + size );
+        state = State.HEADER;
+    }
+
+    /**
+     * Create an independent block from bits starting at the current block magic and ending at given position.
+     *
+     * @param last whether the block is followed by end of stream
+     */
+    private UndecompressedBlock makeBlock( long end, boolean last )
+    {
+        int crc = (int) getBits( mark + 48, 32 );
+        crcs.add( crc );
+
+        int from = (int) ( mark / 8 - base );
+        int to = (int) ( ( end + 7 ) / 8 - base );
+        byte[] data = new byte[to - from + UndecompressedBlock.PADDING];
+
+        /* Magic number following the block was buffered when it was found, and it goes into padding. */
+        int copy = last ? to : (int) ( ( end + 48 + 7 ) / 8 - base );
+        System.arraycopy( buffer, from, data, 0, copy - from );
+
+        UndecompressedBlock block = new UndecompressedBlock( data, mark, end, last, bs100k, crc );
+        if ( previous != null )
+            previous.next = block;
+        previous = block;
+        return block;
+    }
+
+    /**
+     * Get bits at given absolute position in buffered data.
+     */
+    private long getBits( long position, int n )
+    {
+        int i = (int) ( position / 8 - base );
+        long word = 0;
+        for ( int k = 0; k < 8 && i + k < size; k++ )
+            word |= ( buffer[i + k] & 0xFFL ) << ( 56 - 8 * k );
+        return ( word << ( position % 8 ) ) >>> ( 64 - n );
+    }
+
+    /**
+     * Discard buffered bytes before given absolute position.
+     */
+    private void discard( long position )
     {
-        // TODO Auto-generated method stub
-        return null;
+        int n = (int) ( position - base );
+        System.arraycopy( buffer, n, buffer, 0, size - n );
+        size -= n;
+        base = position;
+    }
+
+    private void append( byte[] buf, int off, int len )
+    {
+        if ( size + len > buffer.length )
+        {
+            byte[] newBuffer = new byte[Math.max( 2 * buffer.length, size + len )];
+            System.arraycopy( buffer, 0, newBuffer, 0, size );
+            buffer = newBuffer;
+        }
+
+        System.arraycopy( buf, off, buffer, size, len );
+        size += len;
     }
 }
@@ -66,6 +66,21 @@ final class SubstringSort
      */
     private static final int SS_BLOCKSIZE = 1024;
 
+    /**
+     * Stack size for multikey introsort. minstacksize = log(SS_BLOCKSIZE) / log(3) * 2
+     */
+    private static final int SS_MISORT_STACKSIZE = 16;
+
+    private static final int SS_SMERGE_STACKSIZE = 32;
+
+    /*
+     * Stacks are allocated once per instance rather than on each call, as the functions using them are called many
+     * times for every block.
+     */
+    private final int[] misort_stack = new int[4 * SS_MISORT_STACKSIZE];
+
+    private final int[] smerge_stack = new int[4 * SS_SMERGE_STACKSIZE];
+
     /*- Macros -*/
     private final int STACK_PUSH( final int[] stack, final int ssize, final int a, final int b, final int c, final int d )
     {
@@ -287,9 +302,7 @@ final class SubstringSort
     /* Multikey introsort for medium size groups. */
     private final void ss_mintrosort( final byte[] T, final int[] SA, final int xpa, int first, int last, int depth )
     {
-        /* minstacksize = log(SS_BLOCKSIZE) / log(3) * 2 */
-        final int SS_MISORT_STACKSIZE = 16;
-        final int[] stack = new int[4 * SS_MISORT_STACKSIZE];
+        final int[] stack = misort_stack;
         int a, b, c, d, e, f;
         int s, t;
         int ssize;
@@ -943,8 +956,7 @@ final class SubstringSort
     private final void ss_swapmerge( final byte[] T, final int[] SA, final int xpa, int first, int middle, int last,
                                      final int buf, final int bufsize, final int depth )
     {
-        final int SS_SMERGE_STACKSIZE = 32;
-        final int[] stack = new int[4 * SS_SMERGE_STACKSIZE];
+        final int[] stack = smerge_stack;
         int l, r, lm, rm;
         int m, len, half;
         int ssize;
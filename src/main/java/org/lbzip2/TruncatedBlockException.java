@@ -0,0 +1,34 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+/**
+ * This exception indicates that compressed block continues past the data which was found so far. It happens when a
+ * magic number appears inside compressed block by chance, and the segment following it wasn't found yet. Decompression
+ * can be retried once more compressed data is split into segments.
+ * 
+ * @author Mikolaj Izdebski
+ */
+final class TruncatedBlockException
+    extends StreamFormatException
+{
+    private static final long serialVersionUID = -3906217471364151726L;
+
+    TruncatedBlockException()
+    {
+        super( "ERR_EOF" );
+    }
+}
@@ -19,9 +19,9 @@ import static org.lbzip2.Constants.CHARACTER_BIAS;
 import static org.lbzip2.Constants.MAX_BLOCK_SIZE;
 import static org.lbzip2.Constants.MAX_RUN_LENGTH;
 import static org.lbzip2.Constants.MIN_BLOCK_SIZE;
-import static org.lbzip2.Constants.crc_table;
 
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 /**
  * @author Mikolaj Izdebski
@@ -35,14 +35,41 @@ public class UncompressedBlock
 
     private final int maxSize;
 
+    /**
+     * Minimal number of input bytes left for literals to be copied in bulk.
+     */
+    private static final int FAST_PATH_MIN = 16;
+
     int crc = -1;
 
+    /**
+     * Number of bytes written to this block, before initial RLE was applied.
+     */
+    int inputSize;
+
     private int rleState;
 
     private int rleCharacter;
 
     final boolean[] inuse = new boolean[256];
 
+    private Effort effort = Effort.DEFAULT;
+
+    /**
+     * Trees of the previous block of the same stream to start entropy coding with, or {@code null}.
+     */
+    EntropyCoder.Seed seed;
+
+    /**
+     * Where trees of this block are saved for the next block of the same stream, or {@code null}.
+     */
+    EntropyCoder.Seed nextSeed;
+
+    /**
+     * Arena of working memory the block is encoded with, or {@code null} if the heap is used.
+     */
+    WorkingMemory memory;
+
     public UncompressedBlock()
     {
         this( MAX_BLOCK_SIZE );
@@ -78,6 +105,78 @@ public class UncompressedBlock
         return rleState < 0;
     }
 
+    /**
+     * Find the first run of 4 identical characters starting at an index within given range. Range must be followed by
+     * at least 3 more characters.
+     * <p>
+     * Each run of 4 characters starting at index {@code j} consists of 3 pairs of identical characters, starting at
+     * indices {@code j}, {@code j+1} and {@code j+2}. One of them is always at index divisible by 3 (relative to the
+     * beginning of the range), so only pairs at such indices need to be compared. Runs are looked for only around
+     * pairs of identical characters.
+     * 
+     * @param buf buffer to scan
+     * @param from index of the first character which can start a run
+     * @param limit index past the last character which can start a run
+     * @return index where the first run starts, or {@code limit} if there are no runs in given range
+     */
+    private static int findRun( byte[] buf, int from, int limit )
+    {
+        for ( int k = from; k < limit + 2; k += 3 )
+        {
+            if ( buf[k] == buf[k + 1] )
+            {
+                for ( int j = Math.max( from, k - 2 ); j <= k && j < limit; j++ )
+                {
+                    byte c = buf[j];
+                    if ( buf[j + 1] == c && buf[j + 2] == c && buf[j + 3] == c )
+                        return j;
+                }
+            }
+        }
+
+        return limit;
+    }
+
+    /**
+     * Find the end of literals starting at given index, that is characters which are not a part of any run of 4
+     * identical characters. Character preceding given index is the last one written to the block. Returned index
+     * is such that character at that index differs from its predecessor.
+     * 
+     * @param buf buffer to scan
+     * @param off index of the first literal
+     * @param limit maximal index to return, which must be followed by at least 3 more characters
+     * @return index past the last literal
+     */
+    private static int findLiterals( byte[] buf, int off, int limit )
+    {
+        int end = findRun( buf, off - 1, limit );
+        while ( end > off && buf[end - 1] == buf[end] )
+            end--;
+        return end;
+    }
+
+    /**
+     * Copy literals from given range of buffer to the block. Characters are copied and marked as used in separate
+     * loops, so that the copying loop can be vectorized.
+     * 
+     * @return new block size
+     */
+    private int copyLiterals( byte[] buf, int off, int end, int size )
+    {
+        final byte[] block = this.block;
+        final boolean[] inuse = this.inuse;
+        final int delta = size - off;
+
+        /* Adding CHARACTER_BIAS modulo 256 is the same as flipping the most significant bit. */
+        for ( int i = off; i < end; i++ )
+            block[i + delta] = (byte) ( buf[i] ^ 0x80 );
+
+        for ( int i = off; i < end; i++ )
+            inuse[buf[i] & 0xFF] = true;
+
+        return end + delta;
+    }
+
     public int write( byte[] buf, int off, final int len )
     {
         if ( len == 0 )
@@ -87,7 +186,6 @@ public class UncompressedBlock
         final int maxOff = off + len;
         int size = this.size;
         int ch;
-        int crc = this.crc;
 
         /*
          * State can't be equal to MAX_RUN_LENGTH because the run would have already been dumped by the previous
@@ -140,7 +238,6 @@ public class UncompressedBlock
                              * length.
                              */
                             off++;
-                            crc = ( crc << 8 ) ^ crc_table[( crc >>> 24 ) ^ ch];
                             rleState++;
 
                             /*
@@ -167,7 +264,6 @@ public class UncompressedBlock
 
                     /* Append the character to the run. */
                     off++;
-                    crc = ( crc << 8 ) ^ crc_table[( crc >>> 24 ) ^ ch];
                     rleState++;
                     block[size++] = (byte) ( ch + CHARACTER_BIAS );
 
@@ -189,7 +285,6 @@ public class UncompressedBlock
                     break main_loop;
                 }
                 ch = buf[off++] & 0xFF;
-                crc = ( crc << 8 ) ^ crc_table[( crc >>> 24 ) ^ ch];
 
                 state1: for ( ;; )
                 {
@@ -211,9 +306,25 @@ public class UncompressedBlock
                             rleCharacter = ch;
                             break main_loop;
                         }
+
+                        /*
+                         * Fast path: copy literals up to the next run in bulk. Copying ends just before a character
+                         * which differs from its predecessor, so that the state machine resumes in state 1. Enough
+                         * input is left for runs crossing the end of input to be recognized by the state machine.
+                         */
+                        if ( maxOff - off >= FAST_PATH_MIN )
+                        {
+                            int end = findLiterals( buf, off, Math.min( maxOff - 3, off + ( maxSize - size - 1 ) ) );
+                            if ( end > off )
+                            {
+                                size = copyLiterals( buf, off, end, size );
+                                off = end;
+                                ch = buf[off - 1] & 0xFF;
+                            }
+                        }
+
                         last = ch;
                         ch = buf[off++] & 0xFF;
-                        crc = ( crc << 8 ) ^ crc_table[( crc >>> 24 ) ^ ch];
                     }
                     while ( ch != last );
 
@@ -231,7 +342,6 @@ public class UncompressedBlock
                         break main_loop;
                     }
                     ch = buf[off++] & 0xFF;
-                    crc = ( crc << 8 ) ^ crc_table[( crc >>> 24 ) ^ ch];
                     if ( ch != last )
                         continue;
 
@@ -249,7 +359,6 @@ public class UncompressedBlock
                         break main_loop;
                     }
                     ch = buf[off++] & 0xFF;
-                    crc = ( crc << 8 ) ^ crc_table[( crc >>> 24 ) ^ ch];
                     if ( ch != last )
                         continue;
 
@@ -273,8 +382,6 @@ public class UncompressedBlock
 
                         /* Fetch the next character. */
                         ch = buf[off++] & 0xFF;
-                        int savedCrc = crc;
-                        crc = ( crc << 8 ) ^ crc_table[( crc >>> 24 ) ^ ch];
 
                         /*
                          * If the character does not match, terminate the current run and start a fresh one.
@@ -290,7 +397,6 @@ public class UncompressedBlock
                              * There is no space left to begin a new run. Unget the last character and finish.
                              */
                             off--;
-                            crc = savedCrc;
                             rleState = -1;
                             break main_loop;
                         }
@@ -306,12 +412,49 @@ public class UncompressedBlock
             }
         }
 
+        /* CRC is computed in bulk, over all bytes consumed. */
         this.size = size;
-        this.crc = crc;
+        this.crc = Crc.update( crc, buf, maxOff - len, len - ( maxOff - off ) );
+        this.inputSize += len - ( maxOff - off );
         return len - ( maxOff - off );
     }
 
+    /**
+     * Get effort this block is compressed with.
+     * 
+     * @return compression effort
+     */
+    public Effort getEffort()
+    {
+        return effort;
+    }
+
+    /**
+     * Set effort this block is compressed with. Effort is retained when the block is reset.
+     * 
+     * @param effort compression effort
+     */
+    public void setEffort( Effort effort )
+    {
+        if ( effort == null )
+            throw new NullPointerException();
+        this.effort = effort;
+    }
+
     public CompressedBlock compress()
+    {
+        return compress( null, 1 );
+    }
+
+    /**
+     * Compress this block, sorting independent parts of the block in parallel. This reduces latency of compressing a
+     * single block, which matters when there are fewer blocks than threads.
+     * 
+     * @param executor executor used to run sorting tasks, or {@code null} to sort in the calling thread only
+     * @param parallelism number of sorting tasks, including the calling thread
+     * @return compressed block
+     */
+    public CompressedBlock compress( Executor executor, int parallelism )
     {
         if ( size < MIN_BLOCK_SIZE )
             throw new IllegalStateException( "Cannot compress empty block" );
@@ -324,14 +467,21 @@ public class UncompressedBlock
             inuse[rleState - 4] = true;
         }
 
-        CompressedBlock compressedBlock = Encoder.encode( this );
+        CompressedBlock compressedBlock = Encoder.encode( this, executor, parallelism );
+        reset();
 
-        /* Reset block to the initial state. */
+        return compressedBlock;
+    }
+
+    /**
+     * Reset block to the initial state, discarding any data written to it.
+     */
+    void reset()
+    {
         Arrays.fill( inuse, false );
         rleState = 0;
         crc = -1;
         size = 0;
-
-        return compressedBlock;
+        inputSize = 0;
     }
 }
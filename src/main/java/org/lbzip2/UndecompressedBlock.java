@@ -15,14 +15,264 @@
  */
 package org.lbzip2;
 
+import static org.lbzip2.Status.OK;
+
+import java.io.IOException;
+
 /**
+ * A single compressed block, extracted from a stream by {@link StreamDecomposer}.
+ * <p>
+ * The block is self-contained &ndash; it can be decompressed independently of any other blocks. The only exception is
+ * a block cut short by a magic number which appeared inside its compressed data by chance. Such block continues into
+ * the blocks following it, which are not blocks at all, but parts of its data. They are recognized with
+ * {@link #contains} once the block is decompressed, and they must be skipped.
+ *
  * @author Mikolaj Izdebski
  */
 public class UndecompressedBlock
 {
-    public AbstractDataSource deccompress()
+    /**
+     * Number of bytes appended after block data. Retriever requires a few bits of lookahead past the end of block. The
+     * padding holds the magic number following the block, or zeros if end of stream follows it.
+     */
+    static final int PADDING = 8;
+
+    /**
+     * Compressed data, starting with the byte containing block header magic and followed by {@code PADDING} bytes.
+     * Unless the block is the last one, the padding starts with the rest of the magic number following the block.
+     */
+    private final byte[] data;
+
+    /**
+     * Number of bytes of data which precede the byte containing the end of block. That byte starts the following
+     * block.
+     */
+    private final int length;
+
+    final int bs100k;
+
+    final int crc;
+
+    /**
+     * Bit position of block header magic within compressed data.
+     */
+    final long position;
+
+    /**
+     * Bit position of the magic number following the block within compressed data.
+     */
+    final long end;
+
+    /**
+     * Whether the block is known to be followed by end of stream, rather than another block.
+     */
+    private final boolean last;
+
+    /**
+     * Block following this one in the same stream, or {@code null} if it wasn't found yet.
+     */
+    volatile UndecompressedBlock next;
+
+    /**
+     * Number of bytes of data which the retriever can read before moving on to the following block. Bits past the
+     * magic number following the block are not known, except for zero padding after the last block.
+     */
+    private final int lookahead;
+
+    /**
+     * Bit position past the end-of-block symbol, known after the block is retrieved.
+     */
+    private long stop;
+
+    /**
+     * Bit stream reading the block being retrieved, or {@code null} if retrieval hasn't started or is finished.
+     */
+    private BitStream cursor;
+
+    /**
+     * Block being read by {@code cursor}, either this block or one of blocks following it.
+     */
+    private UndecompressedBlock segment;
+
+    /**
+     * Retriever and decoder the block is being retrieved with.
+     */
+    private Retriever retriever;
+
+    private Decoder ds;
+
+    UndecompressedBlock( byte[] data, long position, long end, boolean last, int bs100k, int crc )
+    {
+        this.data = data;
+        this.length = (int) ( end / 8 - position / 8 );
+        this.lookahead = last ? data.length : (int) ( ( end + 48 + 7 ) / 8 - position / 8 );
+        this.position = position;
+        this.end = end;
+        this.last = last;
+        this.bs100k = bs100k;
+        this.crc = crc;
+    }
+
+    /**
+     * Check whether given block, which follows this one, is in fact a part of this block. The result is valid only
+     * after this block was decompressed.
+     *
+     * @param block block following this one
+     * @return {@code true} iff given block must be skipped
+     */
+    public boolean contains( UndecompressedBlock block )
+    {
+        return block.position < stop;
+    }
+
+    /**
+     * Retrieve this block into given decoder. Blocks following this one are retrieved too, as long as the end of block
+     * is not reached.
+     * <p>
+     * Retrieval cut short by {@link TruncatedBlockException} continues where it stopped when this method is called
+     * again with the same retriever and decoder, once more blocks were found.
+     *
+     * @param retriever retriever to use
+     * @param ds decoder to retrieve the block into
+     * @throws TruncatedBlockException if the block continues past blocks found so far
+     * @throws IOException if block is invalid
+     */
+    void retrieve( Retriever retriever, Decoder ds )
+        throws IOException
     {
-        // TODO Auto-generated method stub
-        return null;
+        if ( cursor == null || retriever != this.retriever || ds != this.ds )
+            start( retriever, ds );
+
+        BitStream bs = cursor;
+        try
+        {
+            while ( retriever.retr( ds, bs ) != OK )
+            {
+                if ( bs.eof )
+                    throw new StreamFormatException( "ERR_EOF" );
+
+                if ( bs.len < segment.lookahead )
+                {
+                    /* Look ahead into bits following the segment. */
+                    bs.len = segment.lookahead;
+                    bs.eof = segment.last;
+                    continue;
+                }
+
+                UndecompressedBlock next = segment.next;
+                if ( next == null )
+                    throw new TruncatedBlockException();
+
+                /* The following block starts with the byte which contains the end of the segment. */
+                bs.ptr = next.data;
+                bs.off -= segment.length;
+                bs.len = next.length;
+                segment = next;
+            }
+        }
+        catch ( TruncatedBlockException e )
+        {
+            throw e;
+        }
+        catch ( StreamFormatException e )
+        {
+            UndecompressedBlock failed = segment;
+            rewind();
+
+            /* Errors caused by decoding padding mean that the block continues past end of stream. */
+            if ( bs.eof && failed.tell( bs ) > failed.end )
+                throw new StreamFormatException( "ERR_EOF" );
+            throw e;
+        }
+
+        UndecompressedBlock tail = segment;
+        rewind();
+        stop = tail.tell( bs );
+        if ( tail.last && stop > tail.end )
+            throw new StreamFormatException( "ERR_EOF" );
+    }
+
+    /**
+     * Start retrieving this block from its beginning.
+     */
+    private void start( Retriever retriever, Decoder ds )
+    {
+        BitStream bs = new BitStream();
+        bs.ptr = data;
+        bs.len = length;
+
+        /* Skip block header magic and block CRC. */
+        int skip = (int) ( position % 8 ) + 48 + 32;
+        bs.need( skip - 40 );
+        bs.dump( skip - 40 );
+        bs.need( 40 );
+        bs.dump( 40 );
+
+        retriever.reset();
+        retriever.setMbs( bs100k * 100000 );
+
+        cursor = bs;
+        segment = this;
+        this.retriever = retriever;
+        this.ds = ds;
+    }
+
+    /**
+     * Forget retrieval state, so that next retrieval starts from the beginning of this block.
+     */
+    private void rewind()
+    {
+        cursor = null;
+        segment = null;
+        retriever = null;
+        ds = null;
+    }
+
+    /**
+     * Get bit position within compressed data of the next bit to be read from given bit stream, which reads this block.
+     */
+    private long tell( BitStream bs )
+    {
+        return ( position / 8 + bs.off ) * 8 - bs.live;
+    }
+
+    /**
+     * Decompress this block using given retriever and decoder, storing the result in given block.
+     *
+     * @param retriever retriever to use
+     * @param ds decoder to use
+     * @param block decompressed block to store result in
+     * @return decompressed block
+     * @throws IOException if block is invalid
+     */
+    DecompressedBlock decompress( Retriever retriever, Decoder ds, DecompressedBlock block )
+        throws IOException
+    {
+        retrieve( retriever, ds );
+        block.decode( ds, crc );
+        return block;
+    }
+
+    /**
+     * Decompress this block.
+     *
+     * @return decompressed block
+     * @throws IOException if block is invalid
+     */
+    public DecompressedBlock deccompress()
+        throws IOException
+    {
+        Retriever retriever = Retriever.POOL.acquire();
+        Decoder ds = Decoder.POOL.acquire();
+
+        try
+        {
+            return decompress( retriever, ds, new DecompressedBlock() );
+        }
+        finally
+        {
+            Retriever.POOL.release( retriever );
+            Decoder.POOL.release( ds );
+        }
     }
 }
@@ -0,0 +1,235 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Arena of off-heap working memory, shared by compressing and decompressing streams of one context.
+ * <p>
+ * Per-block working sets, such as IBWT vectors and MTF values, take several megabytes each. When they are allocated
+ * on the Java heap, many concurrent streams churn the old generation, and garbage collection pauses grow with the
+ * number of streams. Streams given an arena take these working sets from it instead, as direct buffers living outside
+ * of the heap. Buffers are handed out again after they are released, so a constant set of buffers is recycled no
+ * matter how many blocks are processed.
+ * <p>
+ * The total size of buffers allocated by the arena, both in use and kept for reuse, is capped by its limit. When a
+ * buffer can't be allocated without exceeding the limit, streams fall back to working memory on the heap, the same
+ * which is used without an arena. Working sets smaller than {@value #GRANULE} elements are always kept on the heap,
+ * and buffer lengths are rounded up to a multiple of that, so that blocks of slightly different sizes can share
+ * buffers.
+ * <p>
+ * The arena is owned by the caller, who closes it once streams using it are finished. Closing the arena drops all
+ * buffers kept in it, as well as buffers released later. Memory of dropped buffers is returned to the system when the
+ * garbage collector reclaims them; buffers are small objects on the heap, so this doesn't make collection any slower.
+ * <p>
+ * Some working sets stay on the heap regardless of the arena, as they are indexed directly by all BWT
+ * implementations. Suffix arrays and bucket tables belong to per-thread encoders, so their number depends on the number
+ * of threads rather than streams. Block buffers are allocated once per stream and reused for all of its blocks.
+ *
+ * @author Mikolaj Izdebski
+ */
+public final class WorkingMemory
+{
+    /**
+     * Granularity of buffer lengths, in elements.
+     */
+    static final int GRANULE = 1 << 16;
+
+    /**
+     * Default limit of memory allocated by an arena, in bytes.
+     */
+    public static final long DEFAULT_LIMIT = 64L << 20;
+
+    private final long limit;
+
+    /**
+     * Number of bytes taken by buffers which were allocated and not dropped yet.
+     */
+    private long allocated;
+
+    /**
+     * Free buffers, keyed by capacity in bytes.
+     */
+    private final Map<Integer, LinkedList<ByteBuffer>> free = new HashMap<Integer, LinkedList<ByteBuffer>>();
+
+    /**
+     * Buffers in use, keyed by views handed out.
+     */
+    private final Map<Buffer, ByteBuffer> used = new IdentityHashMap<Buffer, ByteBuffer>();
+
+    private boolean closed;
+
+    /**
+     * Create an arena with default limit.
+     */
+    public WorkingMemory()
+    {
+        this( DEFAULT_LIMIT );
+    }
+
+    /**
+     * Create an arena with given limit.
+     *
+     * @param limit maximal number of bytes allocated by the arena at any time
+     */
+    public WorkingMemory( long limit )
+    {
+        if ( limit < 0 )
+            throw new IllegalArgumentException( "Working memory limit must not be negative" );
+
+        this.limit = limit;
+    }
+
+    /**
+     * Get the limit of memory allocated by the arena.
+     *
+     * @return limit in bytes
+     */
+    public long getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Get the amount of memory allocated by the arena, including buffers in use and buffers kept for reuse.
+     *
+     * @return number of bytes
+     */
+    public synchronized long getAllocated()
+    {
+        return allocated;
+    }
+
+    /**
+     * Get the amount of memory taken by buffers in use.
+     *
+     * @return number of bytes
+     */
+    public synchronized long getUsed()
+    {
+        long bytes = 0;
+        for ( ByteBuffer buffer : used.values() )
+            bytes += buffer.capacity();
+        return bytes;
+    }
+
+    /**
+     * Close the arena. Buffers kept for reuse are dropped, and so are buffers released afterwards. No more buffers are
+     * handed out, streams still using the arena fall back to working memory on the heap.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+
+        for ( LinkedList<ByteBuffer> shelf : free.values() )
+            for ( ByteBuffer buffer : shelf )
+                allocated -= buffer.capacity();
+        free.clear();
+    }
+
+    /**
+     * Get an int buffer of at least given length, or {@code null} if the arena can't provide one. Contents of the
+     * buffer are undefined.
+     */
+    synchronized IntBuffer ints( int n )
+    {
+        ByteBuffer buffer = take( n, 4 );
+        if ( buffer == null )
+            return null;
+
+        IntBuffer view = buffer.asIntBuffer();
+        used.put( view, buffer );
+        return view;
+    }
+
+    /**
+     * Get a short buffer of at least given length, or {@code null} if the arena can't provide one. Contents of the
+     * buffer are undefined.
+     */
+    synchronized ShortBuffer shorts( int n )
+    {
+        ByteBuffer buffer = take( n, 2 );
+        if ( buffer == null )
+            return null;
+
+        ShortBuffer view = buffer.asShortBuffer();
+        used.put( view, buffer );
+        return view;
+    }
+
+    /**
+     * Return a buffer to the arena. The buffer must not be used by the caller afterwards. Buffers which were not
+     * obtained from this arena, as well as {@code null}, are ignored.
+     */
+    synchronized void release( Buffer view )
+    {
+        ByteBuffer buffer = used.remove( view );
+        if ( buffer == null )
+            return;
+
+        if ( closed )
+        {
+            allocated -= buffer.capacity();
+            return;
+        }
+
+        Integer key = Integer.valueOf( buffer.capacity() );
+        LinkedList<ByteBuffer> shelf = free.get( key );
+        if ( shelf == null )
+        {
+            shelf = new LinkedList<ByteBuffer>();
+            free.put( key, shelf );
+        }
+
+        shelf.add( buffer );
+    }
+
+    private ByteBuffer take( int n, int width )
+    {
+        if ( closed || n < GRANULE || n > Integer.MAX_VALUE / width - GRANULE )
+            return null;
+
+        int bytes = ( ( n + GRANULE - 1 ) & -GRANULE ) * width;
+        LinkedList<ByteBuffer> shelf = free.get( Integer.valueOf( bytes ) );
+        if ( shelf != null && !shelf.isEmpty() )
+            return shelf.poll();
+
+        /* Drop free buffers of other sizes to make room for the new one. */
+        Iterator<LinkedList<ByteBuffer>> it = free.values().iterator();
+        while ( allocated + bytes > limit && it.hasNext() )
+        {
+            LinkedList<ByteBuffer> other = it.next();
+            while ( allocated + bytes > limit && !other.isEmpty() )
+                allocated -= other.poll().capacity();
+        }
+
+        if ( allocated + bytes > limit )
+            return null;
+
+        allocated += bytes;
+        return ByteBuffer.allocateDirect( bytes ).order( ByteOrder.nativeOrder() );
+    }
+}
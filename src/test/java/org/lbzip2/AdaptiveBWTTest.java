@@ -0,0 +1,83 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AdaptiveBWTTest
+    extends AbstractBWTTest
+{
+    public AdaptiveBWTTest()
+    {
+        super( new AdaptiveBWT() );
+    }
+
+    /**
+     * Check transform done by given engine against transform done by {@link DivBWT}. Primary index is only compared up
+     * to the group of {@code repeat} identical rotations.
+     */
+    private static void check( AdaptiveBWT.Engine expectedEngine, byte[] B, int n, int repeat )
+    {
+        AdaptiveBWT bwt = new AdaptiveBWT();
+        int[] expected = new int[n + 1];
+        int expectedIdx = new DivBWT().transform( B.clone(), expected, n );
+        int[] P = new int[n + 1];
+        int idx = bwt.transform( B.clone(), P, n );
+
+        assertEquals( expectedEngine, bwt.getLastEngine() );
+        assertEquals( expectedIdx / repeat, idx / repeat );
+        for ( int i = 0; i < n; i++ )
+            assertEquals( "i=" + i, expected[i], P[i] );
+    }
+
+    /**
+     * Test that tiny blocks, typical blocks, periodic blocks and blocks with far repeats are transformed by appropriate engines.
+     */
+    @Test
+    public void testEngineChoice()
+    {
+        Random random = new Random( 17 );
+        int n = 300000;
+        byte[] B = new byte[n + 1];
+
+        B[0] = 'a';
+        for ( int i = 1; i < 50; i++ )
+            B[i] = (byte) random.nextInt( 4 );
+        check( AdaptiveBWT.Engine.RADIX, B, 50, 1 );
+
+        for ( int i = 0; i < n; i++ )
+            B[i] = (byte) random.nextInt( 1 + i % 89 );
+        check( AdaptiveBWT.Engine.DIVSUFSORT, B, n, 1 );
+
+        /* Short-period repeats are left to tandem repeat sorting. */
+        for ( int i = 17; i < n; i++ )
+            B[i] = i % 50000 == 0 ? (byte) random.nextInt() : B[i - 17];
+        check( AdaptiveBWT.Engine.DIVSUFSORT, B, n, 1 );
+
+        for ( int i = 0; i < n; i++ )
+            B[i] = i < 20000 || i % 50000 == 0 ? (byte) random.nextInt( 1 + i % 89 ) : B[i - 20000];
+        check( AdaptiveBWT.Engine.SAIS, B, n, 1 );
+
+        /* Periodic blocks are transformed by sorting a single period, even if period is short. */
+        for ( int i = 0; i < n; i++ )
+            B[i] = i < 40 ? (byte) random.nextInt( 4 ) : B[i - 40];
+        check( AdaptiveBWT.Engine.SAIS, B, n, n / 40 );
+    }
+}
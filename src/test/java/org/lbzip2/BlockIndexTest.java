@@ -0,0 +1,152 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.lbzip2.TestUtils.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Mikolaj Izdebski
+ */
+public class BlockIndexTest
+{
+    /**
+     * Test that index survives being written to sidecar file and read back, and that random access reads return
+     * correct data.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRandomAccess()
+        throws Exception
+    {
+        Random random = new Random( 11 );
+        byte[] data = new byte[1500000];
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = (byte) random.nextInt( 1 + i % 89 );
+
+        /* Two concatenated streams with different block sizes. */
+        byte[] stream1 = compress( data, 100000 );
+        byte[] stream2 = compress( data, 200000 );
+        byte[] compressed = new byte[stream1.length + stream2.length];
+        System.arraycopy( stream1, 0, compressed, 0, stream1.length );
+        System.arraycopy( stream2, 0, compressed, stream1.length, stream2.length );
+
+        byte[] expected = new byte[2 * data.length];
+        System.arraycopy( data, 0, expected, 0, data.length );
+        System.arraycopy( data, 0, expected, data.length, data.length );
+
+        BlockIndex built = BlockIndex.build( new ByteArrayInputStream( compressed ) );
+        assertTrue( built.getBlockCount() > 15 + 7 );
+        assertEquals( expected.length, built.getUncompressedSize() );
+        assertEquals( compressed.length, built.getCompressedSize() );
+
+        ByteArrayOutputStream sidecar = new ByteArrayOutputStream();
+        built.write( sidecar );
+        assertTrue( sidecar.size() < 16 * built.getBlockCount() );
+
+        BlockIndex index = BlockIndex.read( new ByteArrayInputStream( sidecar.toByteArray() ) );
+        assertEquals( built.getBlockCount(), index.getBlockCount() );
+        assertEquals( built.getCompressedSize(), index.getCompressedSize() );
+        for ( int i = 0; i < index.getBlockCount(); i++ )
+        {
+            assertEquals( built.getBlockPosition( i ), index.getBlockPosition( i ) );
+            assertEquals( built.getBlockOffset( i ), index.getBlockOffset( i ) );
+            assertEquals( built.getBlockCrc( i ), index.getBlockCrc( i ) );
+        }
+
+        File file = File.createTempFile( "lbzip2-", ".bz2" );
+        try
+        {
+            FileOutputStream fos = new FileOutputStream( file );
+            fos.write( compressed );
+            fos.close();
+
+            SeekableLBzip2Channel channel =
+                new SeekableLBzip2Channel( new RandomAccessFile( file, "r" ).getChannel(), index );
+            assertEquals( expected.length, channel.size() );
+
+            for ( int k = 0; k < 50; k++ )
+            {
+                int off = random.nextInt( expected.length );
+                int len = Math.min( random.nextInt( 400000 ), expected.length - off );
+
+                ByteBuffer buf = ByteBuffer.allocate( len );
+                channel.position( off );
+                while ( buf.hasRemaining() )
+                    assertTrue( channel.read( buf ) > 0 );
+                assertEquals( off + len, channel.position() );
+
+                byte[] slice = new byte[len];
+                System.arraycopy( expected, off, slice, 0, len );
+                assertArrayEquals( slice, buf.array() );
+            }
+
+            channel.position( expected.length );
+            assertEquals( -1, channel.read( ByteBuffer.allocate( 1 ) ) );
+            channel.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that index of empty stream is empty.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEmpty()
+        throws Exception
+    {
+        BlockIndex index = BlockIndex.build( new ByteArrayInputStream( compress( new byte[0], 100000 ) ) );
+        assertEquals( 0, index.getBlockCount() );
+        assertEquals( 0, index.getUncompressedSize() );
+        assertEquals( -1, index.findBlock( 0 ) );
+    }
+
+    /**
+     * Test that magic numbers appearing inside compressed block don't make extra blocks.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testChanceMagic()
+        throws Exception
+    {
+        for ( long magic : new long[] { MagicScanner.BLOCK_MAGIC, MagicScanner.EOS_MAGIC } )
+        {
+            byte[] compressed = StreamDecomposerTest.chanceMagicStream( magic );
+            BlockIndex index = BlockIndex.build( new ByteArrayInputStream( compressed ) );
+            assertEquals( 2, index.getBlockCount() );
+            assertEquals( 2, index.getUncompressedSize() );
+        }
+    }
+}
@@ -16,6 +16,9 @@
 package org.lbzip2;
 
 import static org.lbzip2.Constants.crc_table;
+
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 /**
@@ -50,4 +53,49 @@ public class CrcTest
         assertEquals( 0x5af7997b, crcOf( "TEST" ) );
         assertEquals( 0xd5573984, crcOf( "AnOtHeR=TeSt" ) );
     }
+
+    private static int bytewise( int crc, byte[] buf, int off, int len )
+    {
+        while ( len-- > 0 )
+            crc = ( crc << 8 ) ^ crc_table[( crc >>> 24 ) ^ ( buf[off++] & 0xff )];
+        return crc;
+    }
+
+    /**
+     * Test if bulk CRC update gives the same results as byte-by-byte update, for any alignment and length.
+     */
+    public void testBulkUpdate()
+    {
+        Random random = new Random( 7 );
+        byte[] buf = new byte[1000];
+        random.nextBytes( buf );
+
+        for ( int k = 0; k < 1000; k++ )
+        {
+            int off = random.nextInt( buf.length );
+            int len = random.nextInt( buf.length - off + 1 );
+            int crc = random.nextInt();
+            assertEquals( bytewise( crc, buf, off, len ), Crc.update( crc, buf, off, len ) );
+        }
+    }
+
+    /**
+     * Test if CRCs of separate chunks are correctly combined into CRC of their concatenation.
+     */
+    public void testCombine()
+    {
+        Random random = new Random( 8 );
+        byte[] buf = new byte[100000];
+        random.nextBytes( buf );
+
+        for ( int k = 0; k < 100; k++ )
+        {
+            int len1 = random.nextInt( k < 50 ? 20 : buf.length + 1 );
+            int len2 = random.nextInt( buf.length - len1 + 1 );
+            int crc1 = Crc.update( -1, buf, 0, len1 ) ^ -1;
+            int crc2 = Crc.update( -1, buf, len1, len2 ) ^ -1;
+            int crc = Crc.update( -1, buf, 0, len1 + len2 ) ^ -1;
+            assertEquals( crc, Crc.combine( crc1, crc2, len2 ) );
+        }
+    }
 }
@@ -15,6 +15,15 @@
  */
 package org.lbzip2;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
 public class DivBWTTest
     extends AbstractBWTTest
 {
@@ -22,4 +31,42 @@ public class DivBWTTest
     {
         super( new DivBWT() );
     }
+
+    /**
+     * Test that sorting buckets in parallel produces the same transform as sorting them sequentially.
+     */
+    @Test
+    public void testParallelSort()
+    {
+        Random random = new Random( 3 );
+        int n = 900000;
+        byte[] T = new byte[n + 1];
+        for ( int i = 0; i < n; i++ )
+        {
+            if ( i >= 1000 && random.nextInt( 3 ) == 0 )
+                T[i] = T[i - 1 - random.nextInt( 1000 )];
+            else
+                T[i] = (byte) random.nextInt( 1 + i % 200 );
+        }
+
+        int[] expected = new int[n + 1];
+        int expectedIdx = new DivBWT().transform( T, expected, n );
+
+        ExecutorService executor = Executors.newFixedThreadPool( 3 );
+        try
+        {
+            DivBWT bwt = new DivBWT();
+            for ( int parallelism = 2; parallelism <= 8; parallelism *= 2 )
+            {
+                bwt.setExecutor( executor, parallelism );
+                int[] SA = new int[n + 1];
+                assertEquals( expectedIdx, bwt.transform( T, SA, n ) );
+                assertArrayEquals( expected, SA );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
 }
@@ -0,0 +1,163 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Mikolaj Izdebski
+ */
+public class LBzip2CompressorTest
+{
+    private static byte[] sampleData( Random random, int size )
+    {
+        byte[] data = new byte[size];
+        for ( int i = 0; i < size; i++ )
+            data[i] = (byte) ( 'a' + random.nextInt( 1 + i % 26 ) );
+        return data;
+    }
+
+    private static byte[] decompress( byte[] data )
+        throws Exception
+    {
+        InputStream zis = new LBzip2InputStream( new ByteArrayInputStream( data ) );
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int r;
+        while ( ( r = zis.read( buf ) ) != -1 )
+            os.write( buf, 0, r );
+        zis.close();
+        return os.toByteArray();
+    }
+
+    private static byte[] decompressPartially( byte[] data, int len )
+        throws Exception
+    {
+        LBzip2Decompressor decompressor = new LBzip2Decompressor();
+        decompressor.setInput( data );
+        decompressor.finish();
+        byte[] buf = new byte[len];
+        assertEquals( len, decompressor.decompress( buf ) );
+        decompressor.end();
+        return buf;
+    }
+
+    /**
+     * Test that compressor fed with input and output buffers of random size produces the same output as compressing
+     * output stream.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testChunkedCompression()
+        throws Exception
+    {
+        Random random = new Random( 5 );
+        byte[] data = sampleData( random, 500000 );
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        OutputStream zos = new LBzip2OutputStream( expected, 100000 );
+        zos.write( data );
+        zos.close();
+
+        LBzip2Compressor compressor = new LBzip2Compressor( 100000 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[3000];
+        int off = 0;
+
+        while ( !compressor.finished() )
+        {
+            int n = compressor.compress( buf, 0, 1 + random.nextInt( buf.length ) );
+            out.write( buf, 0, n );
+
+            if ( n == 0 && compressor.needsInput() )
+            {
+                if ( off == data.length )
+                {
+                    compressor.finish();
+                    continue;
+                }
+
+                int len = Math.min( 1 + random.nextInt( 20000 ), data.length - off );
+                compressor.setInput( data, off, len );
+                off += len;
+            }
+        }
+
+        assertArrayEquals( expected.toByteArray(), out.toByteArray() );
+        assertEquals( data.length, compressor.getBytesRead() );
+        assertEquals( out.size(), compressor.getBytesWritten() );
+        assertEquals( 0, compressor.compress( buf ) );
+    }
+
+    /**
+     * Test that flushing makes all input given so far available in compressed form, and that compressor can be reused
+     * after it is reset.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFlushAndReset()
+        throws Exception
+    {
+        Random random = new Random( 6 );
+        byte[] data = sampleData( random, 10000 );
+        byte[] buf = new byte[100000];
+
+        LBzip2Compressor compressor = new LBzip2Compressor();
+        compressor.setInput( data, 0, 5000 );
+        int n = compressor.compress( buf );
+        assertEquals( "Only stream header expected", 4, n );
+        assertTrue( compressor.needsInput() );
+
+        compressor.flush();
+        n += compressor.compress( buf, n, buf.length - n );
+        assertTrue( n > 4 );
+        byte[] flushed = new byte[n];
+        System.arraycopy( buf, 0, flushed, 0, n );
+        byte[] head = decompressPartially( flushed, 5000 );
+        for ( int i = 0; i < 5000; i++ )
+            assertEquals( data[i], head[i] );
+        compressor.setInput( data, 5000, 5000 );
+        compressor.finish();
+        n += compressor.compress( buf, n, buf.length - n );
+        assertTrue( compressor.finished() );
+
+        byte[] compressed = new byte[n];
+        System.arraycopy( buf, 0, compressed, 0, n );
+        assertArrayEquals( data, decompress( compressed ) );
+
+        compressor.reset();
+        compressor.setInput( data, 0, 1000 );
+        compressor.reset();
+        compressor.finish();
+        n = compressor.compress( buf );
+        assertTrue( compressor.finished() );
+        compressed = new byte[n];
+        System.arraycopy( buf, 0, compressed, 0, n );
+        assertEquals( 0, decompress( compressed ).length );
+    }
+}
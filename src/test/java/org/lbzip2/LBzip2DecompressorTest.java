@@ -0,0 +1,123 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test of decompressor fed with input in small chunks of random size, as it would be in non-blocking I/O.
+ *
+ * @author Mikolaj Izdebski
+ */
+public class LBzip2DecompressorTest
+    extends AbstractDecompressorTest
+{
+    @Override
+    protected void oneFile( InputStream fis, String md5 )
+        throws Exception
+    {
+        Random random = new Random( 7 );
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int r;
+        while ( ( r = fis.read( buf ) ) != -1 )
+            in.write( buf, 0, r );
+        byte[] input = in.toByteArray();
+
+        LBzip2Decompressor decompressor = new LBzip2Decompressor();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int off = 0;
+
+        try
+        {
+            while ( !decompressor.finished() )
+            {
+                int n = decompressor.decompress( buf, 0, 1 + random.nextInt( buf.length ) );
+                out.write( buf, 0, n );
+
+                if ( n == 0 && decompressor.needsInput() )
+                {
+                    if ( off == input.length )
+                    {
+                        decompressor.finish();
+                        continue;
+                    }
+
+                    int len = Math.min( 1 + random.nextInt( 1000 ), input.length - off );
+                    decompressor.setInput( input, off, len );
+                    off += len;
+                }
+            }
+
+            if ( md5 == null )
+                fail();
+            assertEquals( md5, md5( out.toByteArray() ) );
+            assertEquals( out.size(), decompressor.getBytesWritten() );
+            assertTrue( decompressor.getBytesRead() <= input.length );
+        }
+        catch ( StreamFormatException e )
+        {
+            if ( md5 != null )
+                throw e;
+        }
+        finally
+        {
+            decompressor.end();
+        }
+    }
+
+    /**
+     * Test that compressed data truncated in the middle of a block is reported as invalid.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTruncated()
+        throws Exception
+    {
+        byte[] data = new byte[200000];
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = (byte) ( i % 251 * i >> 5 );
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream zos = new LBzip2OutputStream( bos, 900000 );
+        zos.write( data );
+        zos.close();
+        byte[] compressed = bos.toByteArray();
+
+        InputStream zis = new LBzip2InputStream( new ByteArrayInputStream( compressed, 0, compressed.length / 2 ) );
+        try
+        {
+            while ( zis.read( data ) != -1 )
+                continue;
+            fail();
+        }
+        catch ( StreamFormatException e )
+        {
+        }
+        zis.close();
+    }
+}
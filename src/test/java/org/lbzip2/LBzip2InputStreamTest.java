@@ -15,11 +15,22 @@
  */
 package org.lbzip2;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.lbzip2.TestUtils.compress;
+import static org.lbzip2.TestUtils.decompress;
+import static org.lbzip2.TestUtils.readAll;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
 
 /**
  * @author Mikolaj Izdebski
@@ -50,4 +61,129 @@ public class LBzip2InputStreamTest
                 throw e;
         }
     }
+
+    /**
+     * Test that decoders returned to the pool by streams closed in the middle of a block can be reused.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDecoderReuse()
+        throws Exception
+    {
+        byte[] data = new byte[300000];
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = (byte) ( i % 251 * i >> 5 );
+
+        byte[] compressed = compress( data, 100000 );
+
+        byte[] buf = new byte[data.length];
+        for ( int k = 0; k < 20; k++ )
+        {
+            InputStream zis = new LBzip2InputStream( new ByteArrayInputStream( compressed ) );
+            int n = k % 2 == 0 ? data.length : 150000 + k;
+            int off = 0;
+            while ( off < n )
+                off += zis.read( buf, off, n - off );
+            zis.close();
+
+            byte[] expected = new byte[n];
+            byte[] actual = new byte[n];
+            System.arraycopy( data, 0, expected, 0, n );
+            System.arraycopy( buf, 0, actual, 0, n );
+            assertArrayEquals( expected, actual );
+        }
+    }
+
+    /**
+     * Test decoding of large blocks consisting of a string repeated many times, which have IBWT linked lists split
+     * into several cycles.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testPeriodicBlocks()
+        throws Exception
+    {
+        for ( int period : new int[] { 2, 3, 17, 4099, 65537 } )
+        {
+            byte[] data = new byte[Decoder.MIN_INTERLEAVED * 5 + 7];
+            for ( int i = 0; i < data.length; i++ )
+                data[i] = (byte) ( i % period * 0x9E3779B1 >>> 24 );
+
+            assertArrayEquals( data, decompress( compress( data, 900000 ) ) );
+        }
+    }
+
+    /**
+     * Test that a block cut short by many magic numbers is read correctly, and that blocks found while it is retried
+     * are not submitted for decompression past the limit of blocks in flight.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testManyChanceMagics()
+        throws Exception
+    {
+        byte[] compressed = StreamDecomposerTest.chanceMagicStream( MagicScanner.BLOCK_MAGIC, 50 );
+        final AtomicInteger submitted = new AtomicInteger();
+        Executor executor = new Executor()
+        {
+            public void execute( Runnable command )
+            {
+                submitted.incrementAndGet();
+                command.run();
+            }
+        };
+
+        InputStream zis = new LBzip2InputStream( new ByteArrayInputStream( compressed ), executor, 2 );
+        assertArrayEquals( "aa".getBytes( "US-ASCII" ), readAll( zis ) );
+        assertTrue( submitted.get() <= 3 );
+    }
+
+    /**
+     * Test that low-memory mode produces original data, in both sequential and parallel decompression, including
+     * blocks larger than 64k, whose IBWT vectors don't fit in 16 bits, randomized blocks and long runs.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLowMemory()
+        throws Exception
+    {
+        byte[] data = new byte[700000];
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = (byte) ( i % 5000 < 1000 ? i / 5000 : i % 17 == 0 ? i * 31 >> 3 : 'x' + ( i >> 12 ) % 3 );
+
+        for ( int maxBlockSize : new int[] { 300000, 900000 } )
+        {
+            byte[] compressed = compress( data, maxBlockSize );
+            assertArrayEquals( data, readLowMemory( compressed, 0 ) );
+            assertArrayEquals( data, readLowMemory( compressed, 2 ) );
+        }
+
+        for ( int numThreads : new int[] { 0, 2 } )
+        {
+            assertEquals( "2debfdcf79f03e4a65a667d21ef9de14", md5( readLowMemory( readFile( "rand" ), numThreads ) ) );
+            assertEquals( "bf3335ea7e712d847d189b087e45c54b", md5( readLowMemory( readFile( "repet" ), numThreads ) ) );
+        }
+    }
+
+    /**
+     * Decompress given data in low-memory mode, sequentially if the number of threads is zero.
+     */
+    private static byte[] readLowMemory( byte[] compressed, int numThreads )
+        throws Exception
+    {
+        InputStream is = new ByteArrayInputStream( compressed );
+        LBzip2InputStream zis = numThreads == 0 ? new LBzip2InputStream( is ) : new LBzip2InputStream( is, numThreads );
+        zis.setLowMemory( true );
+        return readAll( zis );
+    }
+
+    private static byte[] readFile( String name )
+        throws Exception
+    {
+        return readAll( new FileInputStream( "test-data/" + name + ".bz2" ) );
+    }
 }
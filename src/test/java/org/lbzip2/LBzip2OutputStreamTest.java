@@ -15,10 +15,20 @@
  */
 package org.lbzip2;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.lbzip2.TestUtils.decompress;
+import static org.lbzip2.TestUtils.sampleData;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -66,4 +76,290 @@ public class LBzip2OutputStreamTest
         os.write( 'c' );
         os.close();
     }
+
+    private static byte[] compress( byte[] data, int maxBlockSize, int numThreads )
+        throws Exception
+    {
+        return compress( data, maxBlockSize, numThreads, Effort.DEFAULT );
+    }
+
+    private static byte[] compress( byte[] data, int maxBlockSize, int numThreads, Effort effort )
+        throws Exception
+    {
+        return compress( data, maxBlockSize, numThreads, effort, false );
+    }
+
+    private static byte[] compress( byte[] data, int maxBlockSize, int numThreads, Effort effort, boolean warmStart )
+        throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        LBzip2OutputStream zos =
+            numThreads == 0 ? new LBzip2OutputStream( os, maxBlockSize ) : new LBzip2OutputStream( os, maxBlockSize,
+                                                                                                    numThreads );
+        zos.setEffort( effort );
+        zos.setWarmStart( warmStart );
+        for ( int off = 0; off < data.length; off += 10000 )
+            zos.write( data, off, Math.min( 10000, data.length - off ) );
+        zos.close();
+        return os.toByteArray();
+    }
+
+    /**
+     * Test that multi-threaded compression produces exactly the same output as single-threaded compression, with and
+     * without warm start of entropy coding.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testParallelCompression()
+        throws Exception
+    {
+        byte[] data = sampleData( 1000000 );
+        byte[] serial = compress( data, 100000, 0 );
+        byte[] parallel = compress( data, 100000, 4 );
+
+        assertArrayEquals( serial, parallel );
+        assertArrayEquals( data, decompress( parallel ) );
+
+        serial = compress( data, 100000, 0, Effort.DEFAULT, true );
+        parallel = compress( data, 100000, 4, Effort.DEFAULT, true );
+
+        assertArrayEquals( serial, parallel );
+        assertArrayEquals( data, decompress( parallel ) );
+    }
+
+    /**
+     * Test that index written during compression is the same as index built by scanning compressed stream.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testIndexOutput()
+        throws Exception
+    {
+        byte[] data = sampleData( 1000000 );
+
+        for ( int numThreads = 0; numThreads <= 2; numThreads += 2 )
+        {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            ByteArrayOutputStream ios = new ByteArrayOutputStream();
+            LBzip2OutputStream zos =
+                numThreads == 0 ? new LBzip2OutputStream( os, 100000 ) : new LBzip2OutputStream( os, 100000,
+                                                                                                  numThreads );
+            zos.setIndexOutput( ios );
+            for ( int off = 0; off < data.length; off += 30000 )
+            {
+                zos.write( data, off, Math.min( 30000, data.length - off ) );
+                if ( off % 300000 == 0 )
+                    zos.flush();
+            }
+            zos.close();
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            BlockIndex.build( new ByteArrayInputStream( os.toByteArray() ) ).write( expected );
+            assertArrayEquals( expected.toByteArray(), ios.toByteArray() );
+            assertEquals( data.length, zos.getIndex().getUncompressedSize() );
+        }
+    }
+
+    /**
+     * Test that reusing encoder working memory doesn't affect compressed output.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testEncoderReuse()
+        throws Exception
+    {
+        byte[] small = sampleData( 50000 );
+        byte[] large = new byte[900000];
+        for ( int i = 0; i < large.length; i++ )
+            large[i] = (byte) ( i * i >> 7 );
+
+        byte[] first = compress( small, 100000, 0 );
+        assertArrayEquals( large, decompress( compress( large, 900000, 0 ) ) );
+        assertArrayEquals( first, compress( small, 100000, 0 ) );
+    }
+
+    /**
+     * Test that compressing from byte buffers, both heap and direct, produces the same output as compressing from byte
+     * arrays, and that data decompressed into byte buffers matches the original.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testByteBuffers()
+        throws Exception
+    {
+        byte[] data = sampleData( 300000 );
+        byte[] expected = compress( data, 100000, 0 );
+
+        for ( int direct = 0; direct < 2; direct++ )
+        {
+            ByteBuffer src =
+                direct == 0 ? ByteBuffer.allocate( data.length ) : ByteBuffer.allocateDirect( data.length );
+            src.put( data ).flip();
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            LBzip2OutputStream zos = new LBzip2OutputStream( os, 100000 );
+            assertEquals( data.length, zos.write( src ) );
+            zos.close();
+            assertArrayEquals( expected, os.toByteArray() );
+
+            src.rewind();
+            ByteBuffer zbuf = ByteBuffer.allocateDirect( expected.length + 100 );
+            assertEquals( expected.length, LBzip2.compress( src, zbuf, 100000 ) );
+            zbuf.flip();
+            byte[] compressed = new byte[zbuf.remaining()];
+            zbuf.duplicate().get( compressed );
+            assertArrayEquals( expected, compressed );
+
+            ByteBuffer dst =
+                direct == 0 ? ByteBuffer.allocate( data.length ) : ByteBuffer.allocateDirect( data.length );
+            assertEquals( data.length, LBzip2.decompress( zbuf, dst ) );
+            assertEquals( 0, zbuf.remaining() );
+            dst.flip();
+            byte[] decompressed = new byte[dst.remaining()];
+            dst.get( decompressed );
+            assertArrayEquals( data, decompressed );
+
+            ByteBuffer heapSrc = ByteBuffer.wrap( compressed );
+            dst.clear();
+            assertEquals( data.length, LBzip2.decompress( heapSrc, dst ) );
+            assertEquals( 0, heapSrc.remaining() );
+            dst.flip();
+            dst.get( decompressed );
+            assertArrayEquals( data, decompressed );
+
+            try
+            {
+                heapSrc.rewind();
+                dst.clear().limit( data.length - 1 );
+                LBzip2.decompress( heapSrc, dst );
+                fail();
+            }
+            catch ( BufferOverflowException e )
+            {
+            }
+
+            for ( int numThreads = 0; numThreads <= 2; numThreads += 2 )
+            {
+                InputStream is = new ByteArrayInputStream( expected );
+                LBzip2InputStream zis =
+                    numThreads == 0 ? new LBzip2InputStream( is ) : new LBzip2InputStream( is, numThreads );
+                ByteBuffer chunk = direct == 0 ? ByteBuffer.allocate( 10000 ) : ByteBuffer.allocateDirect( 10000 );
+                dst.clear();
+                while ( zis.read( chunk ) >= 0 )
+                {
+                    chunk.flip();
+                    dst.put( chunk );
+                    chunk.clear();
+                }
+                zis.close();
+                assertEquals( false, zis.isOpen() );
+                assertEquals( data.length, dst.position() );
+                dst.flip();
+                dst.get( decompressed );
+                assertArrayEquals( data, decompressed );
+            }
+        }
+    }
+
+    /**
+     * Test that data compressed with each effort level decompresses correctly, and that more effort doesn't give
+     * larger output on sample data.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testEffort()
+        throws Exception
+    {
+        byte[] data = sampleData( 300000 );
+        int prevSize = Integer.MAX_VALUE;
+
+        for ( Effort effort : Effort.values() )
+        {
+            byte[] compressed = compress( data, 100000, 0, effort );
+            assertArrayEquals( data, decompress( compressed ) );
+            assertTrue( effort.toString(), compressed.length <= prevSize );
+            prevSize = compressed.length;
+        }
+    }
+
+    /**
+     * Test that searching for the best number of trees in parallel gives exactly the same output as searching in a
+     * single thread.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testParallelTreeSearch()
+        throws Exception
+    {
+        byte[] data = sampleData( 1000000 );
+        byte[] serial = compress( data, 300000, 0, Effort.BEST );
+        byte[] parallel = compress( data, 300000, 4, Effort.BEST );
+
+        assertArrayEquals( serial, parallel );
+        assertArrayEquals( data, decompress( parallel ) );
+    }
+
+    /**
+     * Test that warm start of entropy coding gives correct output, which is not much larger than output of coding
+     * each block from scratch.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testWarmStart()
+        throws Exception
+    {
+        byte[] data = sampleData( 1000000 );
+        byte[] cold = compress( data, 100000, 0 );
+        byte[] warm = compress( data, 100000, 0, Effort.DEFAULT, true );
+
+        assertArrayEquals( data, decompress( warm ) );
+        assertTrue( warm.length < cold.length * 1.01 );
+    }
+
+    /**
+     * Test that runs of various lengths are compressed the same way regardless of how input is split into chunks, even
+     * when runs cross chunk and block boundaries.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRunsAcrossChunks()
+        throws Exception
+    {
+        Random random = new Random( 19 );
+        byte[] data = new byte[500000];
+        for ( int i = 0; i < data.length; )
+        {
+            int len = Math.min( random.nextInt( 4 ) == 0 ? 1 + random.nextInt( 300 ) : 1, data.length - i );
+            byte c = (byte) random.nextInt( 4 );
+            while ( len-- > 0 )
+                data[i++] = c;
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        OutputStream zos = new LBzip2OutputStream( os, 12345 );
+        zos.write( data );
+        zos.close();
+        byte[] expected = os.toByteArray();
+
+        os = new ByteArrayOutputStream();
+        zos = new LBzip2OutputStream( os, 12345 );
+        for ( int off = 0; off < data.length; )
+        {
+            int len = Math.min( 1 + random.nextInt( 50 ), data.length - off );
+            zos.write( data, off, len );
+            off += len;
+        }
+        zos.close();
+
+        assertArrayEquals( expected, os.toByteArray() );
+        assertArrayEquals( data, decompress( expected ) );
+    }
 }
@@ -0,0 +1,155 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.lbzip2.TestUtils.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * @author Mikolaj Izdebski
+ */
+public class MappedLBzip2DecompressorTest
+{
+    private static byte[] decompress( byte[] compressed, long segmentSize, int numThreads )
+        throws Exception
+    {
+        File file = File.createTempFile( "lbzip2-", ".bz2" );
+        ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+        try
+        {
+            FileOutputStream fos = new FileOutputStream( file );
+            fos.write( compressed );
+            fos.close();
+
+            FileChannel channel = new RandomAccessFile( file, "r" ).getChannel();
+            try
+            {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                MappedLBzip2Decompressor decompressor =
+                    new MappedLBzip2Decompressor( channel, segmentSize, executor, 0, 2 * numThreads );
+                assertEquals( decompressor.decompress( Channels.newChannel( bos ) ), bos.size() );
+                return bos.toByteArray();
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            file.delete();
+        }
+    }
+
+    /**
+     * Test decompression of concatenated streams followed by garbage, with segments much smaller than blocks, so that
+     * most blocks cross segment boundaries.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSmallSegments()
+        throws Exception
+    {
+        Random random = new Random( 17 );
+        byte[] data = new byte[1200000];
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = (byte) random.nextInt( 1 + i % 73 );
+
+        byte[] stream1 = compress( data, 100000 );
+        byte[] stream2 = compress( new byte[0], 100000 );
+        byte[] stream3 = compress( data, 300000 );
+        byte[] compressed = new byte[stream1.length + stream2.length + stream3.length + 3];
+        System.arraycopy( stream1, 0, compressed, 0, stream1.length );
+        System.arraycopy( stream2, 0, compressed, stream1.length, stream2.length );
+        System.arraycopy( stream3, 0, compressed, stream1.length + stream2.length, stream3.length );
+        compressed[compressed.length - 3] = 'B';
+        compressed[compressed.length - 2] = 'Z';
+
+        byte[] expected = new byte[2 * data.length];
+        System.arraycopy( data, 0, expected, 0, data.length );
+        System.arraycopy( data, 0, expected, data.length, data.length );
+
+        assertArrayEquals( expected, decompress( compressed, 4099, 3 ) );
+        assertArrayEquals( expected, decompress( compressed, 1021, 1 ) );
+        assertArrayEquals( expected, decompress( compressed, MappedLBzip2Decompressor.SEGMENT_SIZE, 4 ) );
+    }
+
+    /**
+     * Test that corrupted and truncated files are rejected.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInvalid()
+        throws Exception
+    {
+        byte[] data = new byte[300000];
+        new Random( 3 ).nextBytes( data );
+        byte[] compressed = compress( data, 100000 );
+
+        byte[] corrupted = compressed.clone();
+        corrupted[corrupted.length / 2] ^= 0x10;
+        byte[] truncated = new byte[compressed.length - 5];
+        System.arraycopy( compressed, 0, truncated, 0, truncated.length );
+
+        for ( byte[] input : new byte[][] { corrupted, truncated, new byte[] { 'B', 'Z', 'h' } } )
+        {
+            try
+            {
+                decompress( input, 1000, 2 );
+                fail();
+            }
+            catch ( StreamFormatException e )
+            {
+            }
+        }
+    }
+
+    /**
+     * Test that magic numbers appearing inside block data by chance don't end blocks prematurely.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testChanceMagic()
+        throws Exception
+    {
+        for ( long magic : new long[] { MagicScanner.BLOCK_MAGIC, MagicScanner.EOS_MAGIC } )
+        {
+            byte[] compressed = StreamDecomposerTest.chanceMagicStream( magic );
+            byte[] expected = "aa".getBytes( "US-ASCII" );
+
+            assertArrayEquals( expected, decompress( compressed, 7, 1 ) );
+            assertArrayEquals( expected, decompress( compressed, MappedLBzip2Decompressor.SEGMENT_SIZE, 2 ) );
+        }
+    }
+}
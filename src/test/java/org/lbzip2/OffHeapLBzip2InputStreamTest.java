@@ -0,0 +1,71 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.junit.After;
+
+/**
+ * Test decompression with IBWT lists held off the heap.
+ *
+ * @author Mikolaj Izdebski
+ */
+public class OffHeapLBzip2InputStreamTest
+    extends AbstractDecompressorTest
+{
+    private final WorkingMemory memory = new WorkingMemory();
+
+    @After
+    public void tearDown()
+    {
+        assertEquals( 0, memory.getUsed() );
+        memory.close();
+    }
+
+    @Override
+    protected void oneFile( InputStream fis, String md5 )
+        throws Exception
+    {
+        LBzip2InputStream zis = new LBzip2InputStream( fis );
+        zis.setWorkingMemory( memory );
+
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int r;
+            while ( ( r = zis.read( buf ) ) != -1 )
+                out.write( buf, 0, r );
+            if ( md5 == null )
+                fail();
+            assertEquals( md5, md5( out.toByteArray() ) );
+        }
+        catch ( StreamFormatException e )
+        {
+            if ( md5 != null )
+                throw e;
+        }
+        finally
+        {
+            zis.close();
+        }
+    }
+}
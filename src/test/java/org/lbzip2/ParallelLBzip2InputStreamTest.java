@@ -0,0 +1,128 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+/**
+ * @author Mikolaj Izdebski
+ */
+public class ParallelLBzip2InputStreamTest
+    extends AbstractDecompressorTest
+{
+    @Override
+    protected void oneFile( InputStream fis, String md5 )
+        throws Exception
+    {
+        try
+        {
+            LBzip2InputStream zis = new LBzip2InputStream( fis, 3 );
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int r;
+            while ( ( r = zis.read( buf ) ) != -1 )
+                out.write( buf, 0, r );
+            zis.close();
+            if ( md5 == null )
+                fail();
+            assertEquals( md5, md5( out.toByteArray() ) );
+        }
+        catch ( StreamFormatException e )
+        {
+            if ( md5 != null )
+                throw e;
+        }
+    }
+
+    /**
+     * Test decompression of a stream consisting of many blocks, with more blocks than are allowed to be in flight.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testManyBlocks()
+        throws Exception
+    {
+        Random random = new Random( 1 );
+        byte[] data = new byte[1234567];
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = (byte) ( random.nextInt( 8 ) * random.nextInt( 8 ) );
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream zos = new LBzip2OutputStream( bos, 100000 );
+        zos.write( data );
+        zos.close();
+
+        InputStream zis = new LBzip2InputStream( new ByteArrayInputStream( bos.toByteArray() ), 2 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int r;
+        while ( ( r = zis.read( buf ) ) != -1 )
+            out.write( buf, 0, r );
+        zis.close();
+
+        assertArrayEquals( data, out.toByteArray() );
+    }
+
+    /**
+     * Test that magic numbers appearing inside compressed block don't break decompression, also when the block is
+     * decompressed before the segment following the magic is found.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testChanceMagic()
+        throws Exception
+    {
+        ExecutorService executor = LBzip2InputStream.newExecutor( 2 );
+
+        try
+        {
+            for ( long magic : new long[] { MagicScanner.BLOCK_MAGIC, MagicScanner.EOS_MAGIC } )
+            {
+                for ( int maxInFlight : new int[] { 1, 4 } )
+                {
+                    byte[] compressed = StreamDecomposerTest.chanceMagicStream( magic );
+                    InputStream zis = new LBzip2InputStream( new ByteArrayInputStream( compressed ), executor,
+                                                             maxInFlight );
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buf = new byte[1000];
+                    int r;
+                    while ( ( r = zis.read( buf ) ) != -1 )
+                        out.write( buf, 0, r );
+                    zis.close();
+
+                    assertArrayEquals( "aa".getBytes( "US-ASCII" ), out.toByteArray() );
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
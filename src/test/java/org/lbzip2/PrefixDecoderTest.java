@@ -91,4 +91,91 @@ public class PrefixDecoderTest
             assertEquals( expectException, decoder.error != null );
         }
     }
+
+    /**
+     * Test that every lookup table entry decodes the first code correctly, and that it is paired with the following
+     * code whenever both codes fit in the table index.
+     */
+    public void testSymbolPairs()
+    {
+        final int W = PrefixDecoder.HUFF_START_WIDTH;
+
+        for ( int iter = 0; iter < N_ITER; iter++ )
+        {
+            /* Grow a random complete prefix tree by splitting leaves. */
+            int as = random.nextInt( MAX_ALPHA_SIZE - 2 ) + 3;
+            int[] len = new int[as];
+            len[0] = len[1] = 1;
+            for ( int n = 2; n < as; n++ )
+            {
+                int v;
+                do
+                    v = random.nextInt( n );
+                while ( len[v] == MAX_CODE_LENGTH );
+                len[n] = ++len[v];
+            }
+
+            PrefixDecoder decoder = new PrefixDecoder();
+            decoder.make_tree( len, as );
+            assertNull( decoder.error );
+
+            /* Assign canonical codes, left-justified in W bits, to symbols in internal representation. */
+            int[] code = new int[as];
+            int[] symbol = new int[as];
+            int next = 0;
+            for ( int k = 1; k <= MAX_CODE_LENGTH; k++ )
+            {
+                for ( int v = 0; v < as; v++ )
+                {
+                    if ( len[v] == k )
+                    {
+                        code[v] = k <= W ? next << ( W - k ) : -1;
+                        next++;
+                    }
+                }
+                next <<= 1;
+            }
+            for ( int v = 0; v < as; v++ )
+                symbol[v] = v == 0 ? PrefixDecoder.RUN_A : v == 1 ? PrefixDecoder.RUN_B : v == as - 1 ? 0 : v - 1;
+
+            for ( int c = 0; c < 1 << W; c++ )
+            {
+                int x = decoder.start[c];
+                int k = x & 0x1F;
+                if ( k > W )
+                    continue;
+
+                int v = find( code, len, c );
+                assertEquals( len[v], k );
+                assertEquals( symbol[v], x >> 5 & 0x1FF );
+
+                int k2 = x >> 14 & 0x1F;
+                int rest = ( c << k ) & ( ( 1 << W ) - 1 );
+                int u = find( code, len, rest );
+                if ( u >= 0 && k + len[u] <= W )
+                {
+                    assertEquals( len[u], k2 );
+                    assertEquals( symbol[u], x >>> 19 );
+                }
+                else
+                {
+                    assertEquals( 0, k2 );
+                }
+            }
+        }
+    }
+
+    /**
+     * Find symbol which code of at most {@code HUFF_START_WIDTH} bits is a prefix of given table index.
+     */
+    private static int find( int[] code, int[] len, int c )
+    {
+        for ( int v = 0; v < code.length; v++ )
+        {
+            int shift = PrefixDecoder.HUFF_START_WIDTH - len[v];
+            if ( code[v] >= 0 && c >> shift == code[v] >> shift )
+                return v;
+        }
+        return -1;
+    }
 }
@@ -0,0 +1,91 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SaisBWTTest
+    extends AbstractBWTTest
+{
+    public SaisBWTTest()
+    {
+        super( new SaisBWT() );
+    }
+
+    /**
+     * Compare transforms of random, repetitive and periodic blocks with transforms done by {@link DivBWT}. Periodic
+     * blocks have identical rotations, so primary index is only compared up to the group of identical rotations.
+     */
+    @Test
+    public void testCompareWithDivBWT()
+    {
+        Random random = new Random( 13 );
+        BWT sais = new SaisBWT();
+        BWT div = new DivBWT();
+
+        for ( int k = 0; k < 300; k++ )
+        {
+            int period = 1 + random.nextInt( k < 200 ? 50 : 5000 );
+            int repeat = k % 3 == 0 ? 1 + random.nextInt( 20 ) : 1;
+            int alphabet = 1 + random.nextInt( k % 2 == 0 ? 3 : 256 );
+            int n = period * repeat;
+
+            byte[] B = new byte[n + 1];
+            for ( int i = 0; i < period; i++ )
+            {
+                if ( i >= 10 && random.nextBoolean() )
+                    B[i] = B[i - 1 - random.nextInt( 10 )];
+                else
+                    B[i] = (byte) random.nextInt( alphabet );
+            }
+            for ( int i = period; i < n; i++ )
+                B[i] = B[i - period];
+
+            int[] expected = new int[n + 1];
+            int expectedIdx = div.transform( B.clone(), expected, n );
+            int[] P = new int[n + 1];
+            int idx = sais.transform( B.clone(), P, n );
+
+            for ( int i = 0; i < n; i++ )
+                assertEquals( "k=" + k + " i=" + i, expected[i], P[i] );
+            assertEquals( "k=" + k, expectedIdx / repeat, idx / repeat );
+        }
+    }
+
+    /**
+     * Test transform of a large block with long repeats, on which suffix sorting algorithms without linear-time
+     * guarantees are slow.
+     */
+    @Test
+    public void testRepetitiveBlock()
+    {
+        int n = 900000;
+        byte[] B = new byte[n + 1];
+        for ( int i = 0; i < n; i++ )
+            B[i] = (byte) ( i % 12345 == 0 ? i / 12345 : 'x' );
+
+        int[] expected = new int[n + 1];
+        int expectedIdx = new DivBWT().transform( B.clone(), expected, n );
+        int[] P = new int[n + 1];
+        assertEquals( expectedIdx, new SaisBWT().transform( B.clone(), P, n ) );
+        for ( int i = 0; i < n; i++ )
+            assertEquals( "i=" + i, expected[i], P[i] );
+    }
+}
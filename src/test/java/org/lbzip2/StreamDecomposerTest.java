@@ -0,0 +1,280 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.lbzip2.Constants.crc_table;
+import static org.lbzip2.TestUtils.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Mikolaj Izdebski
+ */
+public class StreamDecomposerTest
+{
+    /**
+     * Build a stream of two blocks, each holding a single byte {@code 'a'}, with given magic number embedded in
+     * selectors of the first block. There are more selectors than coding groups and all trees are the same, so the
+     * magic doesn't affect decoding.
+     */
+    static byte[] chanceMagicStream( long magic )
+    {
+        return chanceMagicStream( magic, 1 );
+    }
+
+    /**
+     * Build a stream like {@link #chanceMagicStream(long)}, but with given number of magic numbers embedded in the
+     * first block, far enough from each other to be found as separate blocks.
+     */
+    static byte[] chanceMagicStream( long magic, int count )
+    {
+        StringBuilder bits = new StringBuilder();
+        int crc = ~( ( -1 << 8 ) ^ crc_table[0xFF ^ 'a'] );
+
+        append( bits, 0x425A6839, 32 );
+        for ( int k = 0; k < 2; k++ )
+        {
+            /* Selector MTF values are coded in unary, so the magic followed by a zero is a sequence of selectors. */
+            String selectors = "0";
+            for ( int i = 0; k == 0 && i < count; i++ )
+                selectors += Long.toBinaryString( magic | 1L << 48 ).substring( 1 ) + String.format( "%064d", 0 );
+            int numSelectors = selectors.replace( "1", "" ).length();
+
+            append( bits, MagicScanner.BLOCK_MAGIC, 48 );
+            append( bits, crc, 32 );
+            append( bits, 0, 1 + 24 );
+            append( bits, 0x0200, 16 );
+            append( bits, 0x4000, 16 );
+            append( bits, 6, 3 );
+            append( bits, numSelectors, 15 );
+            bits.append( selectors );
+
+            /* Code lengths 1, 2 and 2 for RUNA, RUNB and EOB. */
+            for ( int t = 0; t < 6; t++ )
+                bits.append( "00001" ).append( "0" ).append( "100" ).append( "0" );
+
+            /* RUNA followed by EOB. */
+            bits.append( "0" ).append( "11" );
+        }
+        append( bits, MagicScanner.EOS_MAGIC, 48 );
+
+        /*
+         * Stream CRC is accepted with one bogus block left out. More bogus blocks have zero CRCs, as they are followed
+         * by zero selectors, so they are included in stream CRC instead.
+         */
+        append( bits, Integer.rotateLeft( crc, count > 1 ? count + 1 : 1 ) ^ crc, 32 );
+
+        byte[] stream = new byte[( bits.length() + 7 ) / 8];
+        for ( int i = 0; i < bits.length(); i++ )
+            if ( bits.charAt( i ) == '1' )
+                stream[i / 8] |= 0x80 >> ( i % 8 );
+        return stream;
+    }
+
+    private static void append( StringBuilder bits, long value, int n )
+    {
+        for ( int i = n - 1; i >= 0; i-- )
+            bits.append( ( value >> i & 1 ) != 0 ? '1' : '0' );
+    }
+
+    private static List<UndecompressedBlock> decompose( byte[] compressed, int chunkSize )
+        throws Exception
+    {
+        StreamDecomposer decomposer = new StreamDecomposer();
+        List<UndecompressedBlock> blocks = new ArrayList<UndecompressedBlock>();
+
+        int off = 0;
+        while ( off < compressed.length )
+        {
+            off += decomposer.write( compressed, off, Math.min( chunkSize, compressed.length - off ) );
+            if ( decomposer.isFull() )
+                blocks.add( decomposer.extractBlock() );
+        }
+        decomposer.finish();
+
+        return blocks;
+    }
+
+    /**
+     * Test that blocks found by decomposer can be decompressed independently and that they form original data.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDecomposition()
+        throws Exception
+    {
+        Random random = new Random( 7 );
+        byte[] data = new byte[2000000];
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = (byte) random.nextInt( 1 + i % 97 );
+
+        /* Two concatenated streams followed by some garbage. */
+        byte[] stream1 = compress( data, 100000 );
+        byte[] stream2 = compress( data, 300000 );
+        byte[] compressed = new byte[stream1.length + stream2.length + 3];
+        System.arraycopy( stream1, 0, compressed, 0, stream1.length );
+        System.arraycopy( stream2, 0, compressed, stream1.length, stream2.length );
+
+        int numBlocks = -1;
+        for ( int chunkSize : new int[] { compressed.length, 4096, 7, 1 } )
+        {
+            List<UndecompressedBlock> blocks = decompose( compressed, chunkSize );
+            assertTrue( blocks.size() > 20 + 7 );
+            if ( numBlocks >= 0 )
+                assertEquals( numBlocks, blocks.size() );
+            numBlocks = blocks.size();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for ( UndecompressedBlock block : blocks )
+            {
+                DecompressedBlock db = block.deccompress();
+                while ( !db.isEmpty() )
+                    out.write( buf, 0, db.read( buf ) );
+            }
+
+            byte[] expected = new byte[2 * data.length];
+            System.arraycopy( data, 0, expected, 0, data.length );
+            System.arraycopy( data, 0, expected, data.length, data.length );
+            assertArrayEquals( expected, out.toByteArray() );
+        }
+    }
+
+    /**
+     * Test that corrupted stream CRC is detected.
+     * 
+     * @throws Exception
+     */
+    @Test( expected = StreamFormatException.class )
+    public void testStreamCrc()
+        throws Exception
+    {
+        byte[] compressed = compress( "Hello, world!".getBytes( "US-ASCII" ), 100000 );
+        compressed[compressed.length - 2] ^= 0x10;
+        decompose( compressed, 4096 );
+    }
+
+    /**
+     * Test that truncated stream is detected.
+     * 
+     * @throws Exception
+     */
+    @Test( expected = StreamFormatException.class )
+    public void testTruncatedStream()
+        throws Exception
+    {
+        byte[] compressed = compress( "Hello, world!".getBytes( "US-ASCII" ), 100000 );
+        byte[] truncated = new byte[compressed.length - 5];
+        System.arraycopy( compressed, 0, truncated, 0, truncated.length );
+        decompose( truncated, 4096 );
+    }
+
+    /**
+     * Test that block and end-of-stream magic numbers appearing inside compressed block don't break decompression.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testChanceMagic()
+        throws Exception
+    {
+        for ( long magic : new long[] { MagicScanner.BLOCK_MAGIC, MagicScanner.EOS_MAGIC } )
+        {
+            byte[] compressed = chanceMagicStream( magic );
+
+            for ( int chunkSize : new int[] { compressed.length, 1 } )
+            {
+                List<UndecompressedBlock> blocks = decompose( compressed, chunkSize );
+                assertEquals( magic == MagicScanner.BLOCK_MAGIC ? 3 : 2, blocks.size() );
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[16];
+                UndecompressedBlock previous = null;
+                for ( UndecompressedBlock block : blocks )
+                {
+                    if ( previous != null && previous.contains( block ) )
+                        continue;
+                    out.write( buf, 0, block.deccompress().read( buf, 0, buf.length ) );
+                    previous = block;
+                }
+
+                assertArrayEquals( "aa".getBytes( "US-ASCII" ), out.toByteArray() );
+            }
+        }
+    }
+
+    /**
+     * Test that retrieval of a block cut short by many magic numbers continues where it stopped as following blocks
+     * are found, rather than starting over.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testResumedRetrieval()
+        throws Exception
+    {
+        List<UndecompressedBlock> blocks = decompose( chanceMagicStream( MagicScanner.BLOCK_MAGIC, 20 ), 1 );
+        assertEquals( 22, blocks.size() );
+        for ( UndecompressedBlock block : blocks )
+            block.next = null;
+
+        Retriever retriever = Retriever.POOL.acquire();
+        Decoder ds = Decoder.POOL.acquire();
+        try
+        {
+            UndecompressedBlock first = blocks.get( 0 );
+            DecompressedBlock block = new DecompressedBlock();
+            int found = 1;
+            for ( ;; )
+            {
+                try
+                {
+                    first.decompress( retriever, ds, block );
+                    break;
+                }
+                catch ( TruncatedBlockException e )
+                {
+                    blocks.get( found - 1 ).next = blocks.get( found );
+                    found++;
+                }
+            }
+
+            assertEquals( 21, found );
+            for ( UndecompressedBlock other : blocks.subList( 1, 21 ) )
+                assertTrue( first.contains( other ) );
+            assertFalse( first.contains( blocks.get( 21 ) ) );
+
+            byte[] buf = new byte[16];
+            assertEquals( 1, block.read( buf, 0, buf.length ) );
+            assertEquals( 'a', buf[0] );
+        }
+        finally
+        {
+            Retriever.POOL.release( retriever );
+            Decoder.POOL.release( ds );
+        }
+    }
+}
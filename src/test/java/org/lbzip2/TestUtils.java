@@ -0,0 +1,84 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Helper methods shared by tests, which compress and decompress data in memory.
+ * 
+ * @author Mikolaj Izdebski
+ */
+final class TestUtils
+{
+    /**
+     * Generate compressible data, consisting of random letters and short repeats of recent data.
+     */
+    static byte[] sampleData( int size )
+    {
+        Random random = new Random( 42 );
+        byte[] data = new byte[size];
+        for ( int i = 0; i < size; i++ )
+        {
+            if ( i >= 100 && random.nextInt( 4 ) == 0 )
+                data[i] = data[i - 1 - random.nextInt( 100 )];
+            else
+                data[i] = (byte) ( 'a' + random.nextInt( 26 ) );
+        }
+        return data;
+    }
+
+    /**
+     * Compress given data into a single stream, in the calling thread.
+     */
+    static byte[] compress( byte[] data, int maxBlockSize )
+        throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream zos = new LBzip2OutputStream( bos, maxBlockSize );
+        zos.write( data );
+        zos.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Decompress given data in the calling thread.
+     */
+    static byte[] decompress( byte[] compressed )
+        throws Exception
+    {
+        return readAll( new LBzip2InputStream( new ByteArrayInputStream( compressed ) ) );
+    }
+
+    /**
+     * Read given stream until its end and close it.
+     */
+    static byte[] readAll( InputStream is )
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int r;
+        while ( ( r = is.read( buf ) ) != -1 )
+            out.write( buf, 0, r );
+        is.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,179 @@
+/*-
+ * Copyright (c) 2014 Mikolaj Izdebski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lbzip2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.lbzip2.TestUtils.readAll;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Mikolaj Izdebski
+ */
+public class WorkingMemoryTest
+{
+    private static final int G = WorkingMemory.GRANULE;
+
+    /**
+     * Test that released buffers are handed out again, and that small buffers are not handed out at all.
+     */
+    @Test
+    public void testRecycling()
+    {
+        WorkingMemory memory = new WorkingMemory();
+
+        IntBuffer a = memory.ints( 3 * G - 5 );
+        assertTrue( a.isDirect() );
+        assertEquals( 3 * G, a.capacity() );
+        assertEquals( 12L * G, memory.getAllocated() );
+        assertEquals( 12L * G, memory.getUsed() );
+
+        a.put( 7, 42 );
+        memory.release( a );
+        assertEquals( 0, memory.getUsed() );
+
+        IntBuffer b = memory.ints( 2 * G + 1 );
+        assertEquals( 42, b.get( 7 ) );
+        assertEquals( 12L * G, memory.getAllocated() );
+
+        assertNull( memory.shorts( G - 1 ) );
+        memory.release( null );
+        memory.release( IntBuffer.wrap( new int[G] ) );
+        memory.release( b );
+        memory.release( b );
+        assertEquals( 0, memory.getUsed() );
+        assertEquals( 12L * G, memory.getAllocated() );
+    }
+
+    /**
+     * Test that arena doesn't allocate more memory than allowed, and that closing it drops its buffers.
+     */
+    @Test
+    public void testLimit()
+    {
+        WorkingMemory memory = new WorkingMemory( 5L * G );
+
+        ShortBuffer a = memory.shorts( 2 * G );
+        assertEquals( 4L * G, memory.getAllocated() );
+        assertNull( memory.shorts( G ) );
+
+        memory.release( a );
+        ShortBuffer b = memory.shorts( G );
+        assertEquals( G, b.capacity() );
+        assertEquals( 2L * G, memory.getAllocated() );
+
+        memory.close();
+        assertNull( memory.shorts( G ) );
+        assertEquals( 2L * G, memory.getAllocated() );
+        memory.release( b );
+        assertEquals( 0, memory.getAllocated() );
+
+        assertNull( new WorkingMemory( 0 ).ints( G ) );
+    }
+
+    private static LBzip2InputStream newInputStream( byte[] compressed, int numThreads )
+    {
+        ByteArrayInputStream bis = new ByteArrayInputStream( compressed );
+        return numThreads > 0 ? new LBzip2InputStream( bis, numThreads ) : new LBzip2InputStream( bis );
+    }
+
+    /**
+     * Test that streams sharing an arena return their working memory when they are closed, and that recycled memory
+     * doesn't corrupt data.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStreams()
+        throws Exception
+    {
+        Random random = new Random( 25 );
+        byte[] data = new byte[700000];
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = (byte) random.nextInt( 1 + i % 41 );
+
+        WorkingMemory memory = new WorkingMemory();
+
+        for ( int numThreads = 0; numThreads < 3; numThreads++ )
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            LBzip2OutputStream zos =
+                numThreads > 0 ? new LBzip2OutputStream( bos, 200000, numThreads )
+                                : new LBzip2OutputStream( bos, 200000 );
+            zos.setWorkingMemory( memory );
+            zos.write( data );
+            zos.close();
+            assertTrue( memory.getAllocated() > 0 );
+            assertEquals( 0, memory.getUsed() );
+
+            /* Pooled decoders holding large heap lists must still take their lists from the arena. */
+            byte[] compressed = bos.toByteArray();
+            assertArrayEquals( data, readAll( newInputStream( compressed, numThreads ) ) );
+
+            WorkingMemory decoding = new WorkingMemory();
+            LBzip2InputStream zis = newInputStream( compressed, numThreads );
+            zis.setWorkingMemory( decoding );
+            assertArrayEquals( data, readAll( zis ) );
+            assertEquals( 0, decoding.getUsed() );
+
+            /* IBWT vectors take 4 bytes per byte of block, rounded up to granules. */
+            assertTrue( decoding.getAllocated() >= 16L * G );
+            decoding.close();
+        }
+
+        memory.close();
+        assertEquals( 0, memory.getAllocated() );
+    }
+
+    /**
+     * Test that streams fall back to the heap when the arena is full.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFallback()
+        throws Exception
+    {
+        byte[] data = new byte[300000];
+        new Random( 5 ).nextBytes( data );
+
+        WorkingMemory memory = new WorkingMemory( 4L * G );
+        IntBuffer hog = memory.ints( G );
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        LBzip2OutputStream zos = new LBzip2OutputStream( bos, 100000, 2 );
+        zos.setWorkingMemory( memory );
+        zos.write( data );
+        zos.close();
+
+        LBzip2InputStream zis = new LBzip2InputStream( new ByteArrayInputStream( bos.toByteArray() ), 2 );
+        zis.setWorkingMemory( memory );
+        assertArrayEquals( data, readAll( zis ) );
+
+        assertEquals( 4L * G, memory.getUsed() );
+        memory.release( hog );
+        memory.close();
+    }
+}